@@ -0,0 +1,204 @@
+package instrumentation.jfr;
+
+import java.util.ArrayDeque;
+
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Listener;
+import instrumentation.Instrumentation.Stage;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Turns {@link Instrumentation} stages and warnings into Java Flight Recorder
+ * events, so path generation shows up on the same timeline as GC, allocation
+ * and thread activity in a recording.
+ *
+ * <pre>
+ * JfrInstrumentation.install();
+ * // run with -XX:StartFlightRecording=filename=paths.jfr
+ * </pre>
+ *
+ * This is the only part of the project that needs jdk.jfr, which is in Java 11
+ * and OpenJDK 8u262 and later, so it lives in its own source folder, jfr, which
+ * isn't on the project's Java 8 build path. Build it separately against the
+ * compiled src folder, for example:
+ *
+ * <pre>
+ * javac --release 11 -cp bin -d bin jfr/instrumentation/jfr/JfrInstrumentation.java
+ * </pre>
+ *
+ * Nothing in src refers to it, so everything else builds and runs on any Java
+ * 8. Events cost next to nothing while no recording is running, but the stages
+ * are still timed, so leave it uninstalled on the robot.
+ */
+public final class JfrInstrumentation {
+
+	private static final Listener LISTENER = new Listener() {
+		@Override
+		public void stageStarted(Stage stage) {
+			StageEvent event = newEvent(stage);
+			event.begin();
+			open.get().push(event);
+		}
+
+		@Override
+		public void stageFinished(Stage stage, long nanos, int segments, int degree, int resolution) {
+			ArrayDeque<StageEvent> events = open.get();
+			// stages finish in reverse order, so the one finishing is on top unless
+			// it started before this was installed, or a stage started inside it
+			// never finished. Drop those so they can't block every later event
+			if (!containsStage(events, stage)) {
+				return;
+			}
+			while (events.peek().stage != stage) {
+				events.pop();
+			}
+			StageEvent event = events.pop();
+			if (event.shouldCommit()) {
+				event.segments = segments;
+				event.degree = degree;
+				event.resolution = resolution;
+				event.nanos = nanos;
+				event.commit();
+			}
+		}
+
+		@Override
+		public void warning(String message) {
+			WarningEvent event = new WarningEvent();
+			if (event.shouldCommit()) {
+				event.message = message;
+				event.commit();
+			}
+		}
+	};
+
+	/**
+	 * Events that have started but not finished on each thread, most recent first
+	 */
+	private static final ThreadLocal<ArrayDeque<StageEvent>> open = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private static boolean installed = false;
+
+	private JfrInstrumentation() {
+	}
+
+	/**
+	 * Starts emitting events and turns instrumentation on
+	 */
+	public static synchronized void install() {
+		if (!installed) {
+			Instrumentation.addListener(LISTENER);
+			installed = true;
+		}
+		Instrumentation.setEnabled(true);
+	}
+
+	/**
+	 * Stops emitting events. Instrumentation is left on, since something else
+	 * might be using it
+	 */
+	public static synchronized void uninstall() {
+		Instrumentation.removeListener(LISTENER);
+		installed = false;
+	}
+
+	private static boolean containsStage(ArrayDeque<StageEvent> events, Stage stage) {
+		for (StageEvent event : events) {
+			if (event.stage == stage) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static StageEvent newEvent(Stage stage) {
+		switch (stage) {
+		case CURVE_CONSTRUCTION:
+			return new CurveConstructionEvent();
+		case TABLE_BUILD:
+			return new TableBuildEvent();
+		case PROFILING:
+			return new ProfilingEvent();
+		case SAMPLING:
+		default:
+			return new SamplingEvent();
+		}
+	}
+
+	@Category({ "Path Generation" })
+	@StackTrace(false)
+	abstract static class StageEvent extends Event {
+		private final transient Stage stage;
+
+		@Label("Segments")
+		int segments;
+
+		@Label("Degree")
+		int degree;
+
+		@Label("Resolution")
+		int resolution;
+
+		@Label("Measured Duration")
+		@Description("Time measured by Instrumentation, without the cost of emitting the event")
+		@Timespan(Timespan.NANOSECONDS)
+		long nanos;
+
+		StageEvent(Stage stage) {
+			this.stage = stage;
+		}
+	}
+
+	@Name("pathing.CurveConstruction")
+	@Label("Curve Construction")
+	@Description("Making the curve between two waypoints. Degree is the degree of the curve")
+	static class CurveConstructionEvent extends StageEvent {
+		CurveConstructionEvent() {
+			super(Stage.CURVE_CONSTRUCTION);
+		}
+	}
+
+	@Name("pathing.TableBuild")
+	@Label("Arc Length Table Build")
+	@Description("Building the arc length table of a curve. Resolution is the number of entries")
+	static class TableBuildEvent extends StageEvent {
+		TableBuildEvent() {
+			super(Stage.TABLE_BUILD);
+		}
+	}
+
+	@Name("pathing.Profiling")
+	@Label("Motion Profile Generation")
+	@Description("Generating one straight motion profile. Segments is the number of motion segments")
+	static class ProfilingEvent extends StageEvent {
+		ProfilingEvent() {
+			super(Stage.PROFILING);
+		}
+	}
+
+	@Name("pathing.Sampling")
+	@Label("Trajectory Sampling")
+	@Description("Sampling trajectory or velocity points. Segments is the number of path segments and "
+			+ "resolution the number of points")
+	static class SamplingEvent extends StageEvent {
+		SamplingEvent() {
+			super(Stage.SAMPLING);
+		}
+	}
+
+	@Name("pathing.Warning")
+	@Label("Path Warning")
+	@Category({ "Path Generation" })
+	@StackTrace(true)
+	static class WarningEvent extends Event {
+		@Label("Message")
+		String message;
+	}
+
+}
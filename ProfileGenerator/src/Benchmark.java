@@ -0,0 +1,281 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import math.BezierCurve;
+import math.LookupTable;
+import math.Timer;
+import math.Util;
+import math.Vector;
+import motion.GenerateMotionProfile;
+import motion.MotionProfileConstraints;
+import motion.MotionProfileGoal;
+import motion.MotionProfileGoal.CompletionBehavior;
+import motion.MotionState;
+import pathing.ColumnarTrajectory;
+import pathing.MidControlOptimizer;
+import pathing.MidControlOptimizer.Objective;
+import pathing.Path;
+import pathing.Path.PointPair;
+import pathing.Path.PointProfile;
+import pathing.Path.VelocityPoint;
+import pathing.PathLocator;
+import pathing.PathPlanner;
+import pathing.PathPlanner.Request;
+import pathing.PathSegment;
+import pathing.Replanner;
+import pathing.Waypoint;
+
+/**
+ * Repeatable benchmarks for the path generation pipeline, meant to replace the
+ * one-off timings in {@link Test}. Every benchmark is warmed up first so the
+ * JIT has compiled it, then timed over several fixed-length iterations. Results
+ * are reported per operation with their spread, along with how many bytes each
+ * operation allocated (measured per thread, so other threads and the GC don't
+ * skew it).
+ *
+ * The path benchmarks run over every path in {@link #corpus()}. Run with a
+ * benchmark name as the first argument to only run benchmarks whose name
+ * contains it.
+ */
+public class Benchmark {
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASUREMENT_ITERATIONS = 10;
+	private static final long ITERATION_NANOS = 200_000_000L;
+
+	private static final double MAX_VELOCITY = 25;
+	private static final double MAX_ACCELERATION = 5;
+	private static final double ROBOT_LENGTH = 38.5;
+	private static final double ROBOT_WIDTH = 33.5;
+	private static final double EFFECTIVE_WIDTH = 28;
+	private static final double DT = 0.01;
+
+	/**
+	 * Results are added here so the JIT can't throw away the work being timed
+	 */
+	private static volatile double sink;
+
+	private interface Operation {
+		double run();
+	}
+
+	/**
+	 * A set of waypoints to make a path from
+	 */
+	private static class Route {
+		final String name;
+		final Waypoint[] waypoints;
+
+		Route(String name, Waypoint... waypoints) {
+			this.name = name;
+			this.waypoints = waypoints;
+		}
+
+		Path makePath() {
+			Path path = new Path(waypoints[0], true);
+			for (int i = 1; i < waypoints.length; i++) {
+				path.addWaypoint(waypoints[i]);
+			}
+			return path;
+		}
+
+		BezierCurve firstBezier() {
+			for (PathSegment seg : makePath().getSegments()) {
+				if (seg.curve instanceof BezierCurve) {
+					return (BezierCurve) seg.curve;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static List<Route> corpus() {
+		List<Route> routes = new ArrayList<>();
+		PathSegment[] scale = Test.makeScalePath(MAX_VELOCITY, ROBOT_LENGTH, ROBOT_WIDTH).getSegments();
+		Waypoint[] scaleWaypoints = new Waypoint[scale.length + 1];
+		scaleWaypoints[0] = scale[0].start;
+		for (int i = 0; i < scale.length; i++) {
+			scaleWaypoints[i + 1] = scale[i].end;
+		}
+		routes.add(new Route("scale", scaleWaypoints));
+		routes.add(new Route("gentle", new Waypoint(0, 0, Math.PI / 2, 0),
+				new Waypoint(30, 200, Math.PI / 2, 0)));
+		routes.add(new Route("turn", new Waypoint(0, 0, Math.PI / 2, 0), new Waypoint(100, 100, 0, 0)));
+		routes.add(new Route("uTurn", new Waypoint(0, 0, Math.PI / 2, 0), new Waypoint(100, 0, -Math.PI / 2, 0)));
+		routes.add(new Route("weave", new Waypoint(0, 0, Math.PI / 2, 0),
+				new Waypoint(60, 100, Math.PI / 2, MAX_VELOCITY), new Waypoint(0, 200, Math.PI / 2, MAX_VELOCITY),
+				new Waypoint(60, 300, Math.PI / 2, MAX_VELOCITY), new Waypoint(0, 400, Math.PI / 2, 0)));
+		return routes;
+	}
+
+	public static void main(String[] args) {
+		String filter = args.length > 0 ? args[0] : "";
+		System.out.printf("%-40s %14s %12s %14s%n", "Benchmark", "ns/op", "+/-", "bytes/op");
+
+		List<Route> corpus = corpus();
+		for (Route route : corpus) {
+			BezierCurve curve = route.firstBezier();
+			if (curve != null) {
+				LookupTable table = curve.getTable();
+				double length = curve.getTotalArcLength();
+				int[] counter = { 0 };
+				run(filter, "deCasteljau", route, () -> curve.deCasteljau(next(counter, 1000) / 1000.0).x);
+				run(filter, "gaussQuadIntegrate64", route,
+						() -> Util.gaussQuadIntegrate64(curve::arcLengthDerivative, 0, 1));
+				run(filter, "gaussKronrodIntegrate", route, () -> Util.gaussKronrodIntegrate(curve::arcLengthDerivative, 0,
+						1, BezierCurve.INTEGRATION_TOLERANCE));
+				run(filter, "lookupTableUniform", route,
+						() -> new LookupTable(curve::arcLengthIntegral, 0, 1).getOutput(1));
+				run(filter, "lookupTableAdaptive", route, () -> LookupTable
+						.adaptive(curve::arcLengthIntegral, curve::arcLengthDerivative, 0, 1,
+								BezierCurve.DEFAULT_TABLE_TOLERANCE)
+						.getOutput(1));
+				run(filter, "lookupTableGetInput", route, () -> table.getInput(next(counter, 1000) * length / 1000));
+			}
+
+			Path generated = route.makePath();
+			generated.generateProfile(MAX_VELOCITY, MAX_ACCELERATION);
+			double pathLength = Math.abs(generated.getProfile().endPos());
+			MotionProfileConstraints constraints = new MotionProfileConstraints(MAX_VELOCITY, MAX_ACCELERATION);
+			MotionProfileGoal goal = new MotionProfileGoal(pathLength, 0, CompletionBehavior.VIOLATE_MAX_ACCEL);
+			MotionState start = new MotionState(0, 0, 0, MAX_ACCELERATION);
+			run(filter, "generateStraightMotionProfile", route,
+					() -> GenerateMotionProfile.generateStraightMotionProfile(constraints, goal, start).duration());
+			run(filter, "generateProfile", route, () -> {
+				// a fresh path every time, so this includes building the tables
+				Path path = route.makePath();
+				path.generateProfile(MAX_VELOCITY, MAX_ACCELERATION);
+				return path.getProfile().duration();
+			});
+			PointProfile velocityProfile = generated.getVelocityProfile(EFFECTIVE_WIDTH);
+			PointPair<VelocityPoint> out = PointProfile.newPair();
+			int[] ticks = { 0 };
+			run(filter, "pointProfileLookup", route, () -> velocityProfile
+					.getInterpolatedPoint(next(ticks, 1000) * velocityProfile.getTotalTimeSec() / 1000, out).left.velocity);
+			Path editable = route.makePath();
+			int last = route.waypoints.length - 1;
+			Waypoint end = route.waypoints[last];
+			// nudge the last waypoint back and forth so every edit remakes its segment
+			Waypoint[] ends = { end, new Waypoint(end.position.add(new Vector(1, 0)), end.heading, end.vel) };
+			int[] edits = { 0 };
+			run(filter, "editLastWaypoint", route, () -> {
+				editable.replaceWaypoint(last, ends[next(edits, 2)]);
+				editable.generateProfile(MAX_VELOCITY, MAX_ACCELERATION);
+				return editable.getProfile().duration();
+			});
+			run(filter, "getTrajectoryPoints", route,
+					() -> generated.getTrajectoryPoints(EFFECTIVE_WIDTH, DT).left.length);
+			ColumnarTrajectory trajectory = generated.getColumnarTrajectory(EFFECTIVE_WIDTH, DT);
+			PathLocator locator = new PathLocator(generated);
+			PathLocator.Result located = new PathLocator.Result();
+			int[] cycles = { 0 };
+			run(filter, "locate", route, () -> {
+				// follow the trajectory a couple inches off to the side, like a follower would
+				int i = next(cycles, trajectory.length());
+				return locator.locate(trajectory.left.x[i] + 2, trajectory.left.y[i], 0, located).arcLength;
+			});
+			// get bumped a few inches sideways a second in, then replan from there
+			Replanner replanner = new Replanner(route.makePath(), constraints, EFFECTIVE_WIDTH, DT,
+					Double.POSITIVE_INFINITY);
+			// clamped so routes shorter than a second still have a point after it
+			int bumped = Math.min((int) (1 / DT), trajectory.length() - 2);
+			Vector bumpedPosition = new Vector(trajectory.left.x[bumped] + 4, trajectory.left.y[bumped]);
+			Vector bumpedHeading = new Vector(trajectory.left.x[bumped + 1] - trajectory.left.x[bumped],
+					trajectory.left.y[bumped + 1] - trajectory.left.y[bumped]).normalized();
+			Waypoint pose = new Waypoint(bumpedPosition, bumpedHeading, 0);
+			MotionState state = generated.getProfile().stateByTimeClamped(bumped * DT);
+			// a bump past the last waypoint has nothing to rejoin
+			if (replanner.replan(pose, state) != null) {
+				run(filter, "replan", route, () -> replanner.replan(pose, state).planMs);
+			}
+			MidControlOptimizer optimizer = new MidControlOptimizer(Objective.DURATION, constraints,
+					Field.signedDistanceField(), EFFECTIVE_WIDTH / 2);
+			// a fresh path every time, so the changed segments' tables get built
+			run(filter, "optimizeMidControl", route, () -> optimizer.optimize(route.makePath()).durationAfter);
+		}
+
+		List<Request> requests = new ArrayList<>();
+		MotionProfileConstraints constraints = new MotionProfileConstraints(MAX_VELOCITY, MAX_ACCELERATION);
+		for (Route route : corpus) {
+			requests.add(new Request(route.name, route.waypoints, true, constraints, EFFECTIVE_WIDTH, DT));
+		}
+		PathPlanner planner = new PathPlanner();
+		run(filter, "planAll:corpus", () -> planner.planAll(requests).size());
+	}
+
+	private static int next(int[] counter, int wrap) {
+		counter[0] = (counter[0] + 1) % wrap;
+		return counter[0];
+	}
+
+	private static void run(String filter, String name, Route route, Operation operation) {
+		run(filter, name + ":" + route.name, operation);
+	}
+
+	private static void run(String filter, String label, Operation operation) {
+		if (!label.contains(filter)) {
+			return;
+		}
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(operation);
+		}
+		double[] nanosPerOp = new double[MEASUREMENT_ITERATIONS];
+		double bytesPerOp = 0;
+		for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+			double[] result = iteration(operation);
+			nanosPerOp[i] = result[0];
+			bytesPerOp += result[1] / MEASUREMENT_ITERATIONS;
+		}
+		double mean = 0;
+		for (double n : nanosPerOp) {
+			mean += n / nanosPerOp.length;
+		}
+		double variance = 0;
+		for (double n : nanosPerOp) {
+			variance += (n - mean) * (n - mean) / (nanosPerOp.length - 1);
+		}
+		System.out.printf("%-40s %14.1f %12.1f %14s%n", label, mean, Math.sqrt(variance),
+				Double.isNaN(bytesPerOp) ? "n/a" : String.format("%.1f", bytesPerOp));
+	}
+
+	/**
+	 * Runs operation over and over for one iteration
+	 *
+	 * @return nanoseconds per operation and bytes allocated per operation (NaN if
+	 *         the JVM can't measure allocation)
+	 */
+	private static double[] iteration(Operation operation) {
+		long ops = 0;
+		double result = 0;
+		long bytesBefore = allocatedBytes();
+		Timer timer = new Timer();
+		timer.reset();
+		while (timer.elapsedNano() < ITERATION_NANOS) {
+			result += operation.run();
+			ops++;
+		}
+		long elapsed = timer.elapsedNano();
+		long bytesAfter = allocatedBytes();
+		sink += result;
+		double bytes = bytesBefore < 0 ? Double.NaN : (double) (bytesAfter - bytesBefore) / ops;
+		return new double[] { (double) elapsed / ops, bytes };
+	}
+
+	/**
+	 * @return bytes allocated by this thread so far, or -1 if the JVM doesn't
+	 *         support measuring it
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+				return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+}
@@ -2,6 +2,9 @@
 
 import java.awt.geom.Rectangle2D;
 
+import pathing.CollisionChecker;
+import pathing.SignedDistanceField;
+
 /*
  * Class for data about the field, like coordinates of stuff
  * Where everything SHOULD be
@@ -21,6 +24,11 @@ public class Field {
 
 	// private static final double DriverWallToSideWall = 29.69;
 
+	/**
+	 * Inside of the field walls
+	 */
+	public static final Rectangle2D BOUNDS = new Rectangle2D.Double(0, 0, 324, 648);
+
 	public static final class Scale {
 		public static final Rectangle2D LEFT_PLATE = new Rectangle2D.Double(72, 299.65, 36, 48);
 		public static final Rectangle2D RIGHT_PLATE = new Rectangle2D.Double(216, 299.65, 36, 48);
@@ -39,6 +47,32 @@ public class Field {
 				new Rectangle2D.Double(225, 195, 13, 13), };
 	}
 
+	/**
+	 * Things on the floor a robot can't drive through during auto
+	 */
+	public static final Rectangle2D[] OBSTACLES = { Switch.BOUNDARY, Scale.PLATFORM };
+
+	/**
+	 * @return a checker that keeps a robot inside {@link #BOUNDS} and off
+	 *         {@link #OBSTACLES}
+	 */
+	public static CollisionChecker collisionChecker(double robotLength, double robotWidth) {
+		return new CollisionChecker(robotLength, robotWidth, BOUNDS, OBSTACLES);
+	}
+
+	/**
+	 * @return distance to the nearest wall or one of the {@link #OBSTACLES}, with
+	 *         a grid point every inch. Made the first time it's asked for, then
+	 *         shared
+	 */
+	public static SignedDistanceField signedDistanceField() {
+		return DistanceFieldHolder.FIELD;
+	}
+
+	private static final class DistanceFieldHolder {
+		static final SignedDistanceField FIELD = new SignedDistanceField(BOUNDS, 1, OBSTACLES);
+	}
+
 	public static final class Zones {
 		public static final Rectangle2D POWER_CUBE_ZONE = new Rectangle2D.Double(140, 98, 45, 42);
 		public static final Rectangle2D EXCHANGE_ZONE = new Rectangle2D.Double(102, 0, 48, 36);
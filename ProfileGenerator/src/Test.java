@@ -228,23 +228,7 @@ public class Test {
 		double robotWidth = 33.5;
 		double effectiveWidth = 28;
 
-		Path path;
-
-		double startingX = Field.Switch.BOUNDARY.getX() - robotWidth / 2.0 - 5;
-		double startingY = robotLength / 2.0;
-		path = new Path(new Waypoint(startingX, startingY, Math.PI / 2, 0), true);
-
-		double middle1X = Field.Scale.PLATFORM.getX() + robotLength / 2.0;
-		double middle1Y = Field.Scale.PLATFORM.getY() - robotWidth / 2.0;
-		path.addWaypoint(new Waypoint(middle1X, middle1Y, 0, maxVelocity));
-
-		double middle2X = Field.Scale.PLATFORM.getMaxX() - robotLength / 2.0;
-		double middle2Y = middle1Y;
-		path.addWaypoint(new Waypoint(middle2X, middle2Y, 0, maxVelocity));
-
-		double endingX = Field.Scale.RIGHT_PLATE.getMaxX() - 5;
-		double endingY = Field.Scale.RIGHT_PLATE.getY() - robotLength / 2.0;
-		path.addWaypoint(new Waypoint(endingX, endingY, Math.PI / 2, 0));
+		Path path = makeScalePath(maxVelocity, robotLength, robotWidth);
 
 		// path = new Path(new Waypoint(0, 0, Math.PI / 2, 0), true);
 		// path.addWaypoint(new Waypoint(100, 0, -Math.PI / 2, 0));
@@ -262,6 +246,29 @@ public class Test {
 		Graphing.graphMyPath(path, sides, dt);
 	}
 
+	/**
+	 * Path from next to the switch, along the near side of the scale platform, to
+	 * the right scale plate
+	 */
+	public static Path makeScalePath(double maxVelocity, double robotLength, double robotWidth) {
+		double startingX = Field.Switch.BOUNDARY.getX() - robotWidth / 2.0 - 5;
+		double startingY = robotLength / 2.0;
+		Path path = new Path(new Waypoint(startingX, startingY, Math.PI / 2, 0), true);
+
+		double middle1X = Field.Scale.PLATFORM.getX() + robotLength / 2.0;
+		double middle1Y = Field.Scale.PLATFORM.getY() - robotWidth / 2.0;
+		path.addWaypoint(new Waypoint(middle1X, middle1Y, 0, maxVelocity));
+
+		double middle2X = Field.Scale.PLATFORM.getMaxX() - robotLength / 2.0;
+		double middle2Y = middle1Y;
+		path.addWaypoint(new Waypoint(middle2X, middle2Y, 0, maxVelocity));
+
+		double endingX = Field.Scale.RIGHT_PLATE.getMaxX() - 5;
+		double endingY = Field.Scale.RIGHT_PLATE.getY() - robotLength / 2.0;
+		path.addWaypoint(new Waypoint(endingX, endingY, Math.PI / 2, 0));
+		return path;
+	}
+
 	public static void main(String[] args) {
 		test();
 	}
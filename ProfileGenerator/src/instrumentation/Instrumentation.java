@@ -0,0 +1,242 @@
+package instrumentation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers for the path generation pipeline, so it can be measured
+ * without printing anything from inside its loops. Everything is off by
+ * default, and while it's off every call here is a single check of a flag.
+ *
+ * Turn it on with {@link #setEnabled(boolean)}, run whatever needs measuring,
+ * then read the results with {@link #get(Counter)}, {@link #nanos(Stage)} and
+ * {@link #calls(Stage)}, or print {@link #report()}. Counts are safe to update
+ * from any number of threads.
+ *
+ * Warnings about odd inputs that used to be printed go to the installed
+ * {@link Listener}s instead, and are dropped if there aren't any.
+ */
+public final class Instrumentation {
+
+	public enum Counter {
+		/**
+		 * lookups in either direction of a LookupTable
+		 */
+		LUT_QUERIES,
+		/**
+		 * times an integrand was evaluated
+		 */
+		QUADRATURE_EVALUATIONS,
+		/**
+		 * times sampling moved on to the next segment of a path
+		 */
+		SEGMENT_TRANSITIONS,
+		/**
+		 * motion profile samples that had to be clamped to the ends of the profile
+		 */
+		CLAMPED_SAMPLES,
+		/**
+		 * warnings passed to {@link Instrumentation#warning(String)}
+		 */
+		WARNINGS
+	}
+
+	/**
+	 * Parts of the pipeline that get timed. What the segments, degree and
+	 * resolution passed to {@link Listener#stageFinished} mean depends on the
+	 * stage; anything that doesn't apply is 0.
+	 */
+	public enum Stage {
+		/**
+		 * making the curve between two waypoints. Degree is the degree of the curve
+		 */
+		CURVE_CONSTRUCTION,
+		/**
+		 * building one arc length table. Degree is the degree of the curve, and
+		 * resolution is the number of entries in the table
+		 */
+		TABLE_BUILD,
+		/**
+		 * generating one straight motion profile. Segments is the number of motion
+		 * segments in it
+		 */
+		PROFILING,
+		/**
+		 * turning a profile into trajectory or velocity points. Segments is the
+		 * number of path segments and resolution is the number of points
+		 */
+		SAMPLING
+	}
+
+	/**
+	 * Gets told about stages and warnings as they happen. Called on whichever
+	 * thread did the work, so implementations have to be thread safe and should
+	 * be quick. Stages on the same thread can be nested, and finish in the
+	 * reverse of the order they started in.
+	 */
+	public interface Listener {
+		void stageStarted(Stage stage);
+
+		void stageFinished(Stage stage, long nanos, int segments, int degree, int resolution);
+
+		void warning(String message);
+	}
+
+	private static volatile boolean enabled = false;
+	private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+	private static final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+	private static final LongAdder[] stageCalls = new LongAdder[Stage.values().length];
+	private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	static {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] = new LongAdder();
+			stageCalls[i] = new LongAdder();
+		}
+	}
+
+	private Instrumentation() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns counting and timing on or off. Results so far are kept, see
+	 * {@link #reset()}
+	 */
+	public static void setEnabled(boolean enabled) {
+		Instrumentation.enabled = enabled;
+	}
+
+	/**
+	 * Sets every counter and timer back to 0
+	 */
+	public static void reset() {
+		for (LongAdder counter : counters) {
+			counter.reset();
+		}
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i].reset();
+			stageCalls[i].reset();
+		}
+	}
+
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public static void count(Counter counter) {
+		if (enabled) {
+			counters[counter.ordinal()].increment();
+		}
+	}
+
+	public static void count(Counter counter, long amount) {
+		if (enabled) {
+			counters[counter.ordinal()].add(amount);
+		}
+	}
+
+	/**
+	 * Starts timing a stage and tells the listeners
+	 *
+	 * @return the start time to pass to {@link #finish(Stage, long)}, or 0 if
+	 *         instrumentation is off
+	 */
+	public static long start(Stage stage) {
+		if (!enabled) {
+			return 0;
+		}
+		for (Listener listener : listeners) {
+			listener.stageStarted(stage);
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Stops timing a stage that has nothing to report but its time
+	 *
+	 * @param start
+	 *            what {@link #start(Stage)} returned
+	 */
+	public static void finish(Stage stage, long start) {
+		finish(stage, start, 0, 0, 0);
+	}
+
+	/**
+	 * Stops timing a stage and tells the listeners
+	 *
+	 * @param start
+	 *            what {@link #start(Stage)} returned
+	 * @param segments
+	 *            see {@link Stage}
+	 * @param degree
+	 *            see {@link Stage}
+	 * @param resolution
+	 *            see {@link Stage}
+	 */
+	public static void finish(Stage stage, long start, int segments, int degree, int resolution) {
+		if (start != 0) {
+			long nanos = System.nanoTime() - start;
+			stageNanos[stage.ordinal()].add(nanos);
+			stageCalls[stage.ordinal()].increment();
+			for (Listener listener : listeners) {
+				listener.stageFinished(stage, nanos, segments, degree, resolution);
+			}
+		}
+	}
+
+	/**
+	 * Reports something odd that isn't worth stopping for. Always counted and
+	 * passed to the listeners, even while instrumentation is off, since warnings
+	 * should be rare.
+	 */
+	public static void warning(String message) {
+		counters[Counter.WARNINGS.ordinal()].increment();
+		for (Listener listener : listeners) {
+			listener.warning(message);
+		}
+	}
+
+	public static long get(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * @return total nanoseconds spent in stage
+	 */
+	public static long nanos(Stage stage) {
+		return stageNanos[stage.ordinal()].sum();
+	}
+
+	/**
+	 * @return number of times stage was timed
+	 */
+	public static long calls(Stage stage) {
+		return stageCalls[stage.ordinal()].sum();
+	}
+
+	/**
+	 * @return every counter and timer, one per line
+	 */
+	public static String report() {
+		StringBuilder result = new StringBuilder();
+		for (Counter counter : Counter.values()) {
+			result.append(String.format("%-24s %d%n", counter, get(counter)));
+		}
+		for (Stage stage : Stage.values()) {
+			result.append(String.format("%-24s %.3f ms in %d calls%n", stage, nanos(stage) / 1.0e6, calls(stage)));
+		}
+		return result.toString();
+	}
+
+}
@@ -1,22 +1,82 @@
 package math;
 
-import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
 
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Stage;
+
+/**
+ * Bezier curve of any degree. The t to arc length table is built the first
+ * time it's needed, and building it is synchronized, so any number of threads
+ * can query a curve at once as long as none of them changes its settings or
+ * turns on the table's cache. For curves that get shared between threads, use
+ * {@link #freeze()}, which also rules those out.
+ */
 public final class BezierCurve implements Curve {
 
+	/**
+	 * Default largest error, in inches, of arc lengths read from the table
+	 */
+	public static final double DEFAULT_TABLE_TOLERANCE = 0.01;
+	/**
+	 * Largest error, in inches, of each arc length integral
+	 */
+	public static final double INTEGRATION_TOLERANCE = 1.0e-9;
+	/**
+	 * Arc length error, in inches, at which Newton refinement stops early
+	 */
+	private static final double NEWTON_TOLERANCE = 1.0e-12;
+	/**
+	 * Highest degree that gets evaluated with power basis coefficients. Higher
+	 * degrees fall back to de Casteljau's algorithm, which stays numerically stable
+	 */
+	public static final int MAX_POWER_BASIS_DEGREE = 7;
+	private static final ThreadLocal<double[]> SCRATCH = ThreadLocal
+			.withInitial(() -> new double[2 * (MAX_POWER_BASIS_DEGREE + 1)]);
+
 	public final Vector[] controlPoints;
-	private BezierCurve derivative = null;
+	/**
+	 * Null if there is only one control point
+	 */
+	private final BezierCurve derivative;
 	public final double[] controlPointsX;
 	public final double[] controlPointsY;
-	private LookupTable tToArcLengthTable = null;
+	/**
+	 * Power basis coefficients, lowest power first, so x(t) = sum of powerX[i] *
+	 * t^i. Null if the degree is above {@link #MAX_POWER_BASIS_DEGREE}
+	 */
+	private final double[] powerX;
+	private final double[] powerY;
+	/**
+	 * Volatile so that the table, and everything written before it, is visible
+	 * to any thread that reads it. Reads of the settings below come after reading
+	 * this field for the same reason.
+	 */
+	private volatile LookupTable tToArcLengthTable = null;
+	private double tableTolerance;
+	private int newtonSteps;
+	private final boolean frozen;
+	private final DoubleUnaryOperator speed = this::arcLengthDerivative;
 
 	/**
 	 * Makes a new Bezier Curve
 	 * 
 	 * @param controlPoints
-	 *            the control points to use. must be at least 2, and no more than 7.
+	 *            the control points to use, at least 2. Curves with up to
+	 *            {@link #MAX_POWER_BASIS_DEGREE} + 1 control points are evaluated
+	 *            with power basis coefficients, and curves with more with de
+	 *            Casteljau's algorithm, so there's no upper limit
 	 */
 	public BezierCurve(Vector... controlPoints) {
+		this(controlPoints, false, DEFAULT_TABLE_TOLERANCE, 0, null);
+	}
+
+	/**
+	 * @param table
+	 *            table to freeze, only used if frozen. Null to build a new one
+	 */
+	private BezierCurve(Vector[] controlPoints, boolean frozen, double tableTolerance, int newtonSteps,
+			LookupTable table) {
 		this.controlPoints = controlPoints;
 		// this.n = controlPoints.length - 1;
 		// Timer t = new Timer();
@@ -27,6 +87,148 @@ public final class BezierCurve implements Curve {
 			controlPointsX[i] = controlPoints[i].x;
 			controlPointsY[i] = controlPoints[i].y;
 		}
+		if (controlPoints.length - 1 <= MAX_POWER_BASIS_DEGREE) {
+			powerX = toPowerBasis(controlPointsX);
+			powerY = toPowerBasis(controlPointsY);
+		} else {
+			powerX = null;
+			powerY = null;
+		}
+		derivative = calculateDerivative();
+		this.tableTolerance = tableTolerance;
+		this.newtonSteps = newtonSteps;
+		this.frozen = frozen;
+		if (frozen) {
+			tToArcLengthTable = (table == null ? buildTable() : table).frozenCopy();
+		}
+	}
+
+	/**
+	 * Makes a copy of this curve that can never change, with its table already
+	 * built and frozen (see {@link LookupTable#freeze()}). Nothing about a frozen
+	 * curve gets computed lazily or cached, so querying it only reads memory, and
+	 * it can be shared between any number of threads without locking. Its setters
+	 * throw an IllegalStateException.
+	 *
+	 * The copy keeps this curve's table tolerance and Newton steps, and reuses its
+	 * table if it was already built.
+	 *
+	 * @return the frozen copy, or this curve if it is already frozen
+	 */
+	public BezierCurve freeze() {
+		if (frozen)
+			return this;
+		return new BezierCurve(controlPoints.clone(), true, tableTolerance, newtonSteps, tToArcLengthTable);
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen)
+			throw new IllegalStateException("curve is frozen");
+	}
+
+	/**
+	 * Converts one coordinate of the control points from the Bernstein basis to
+	 * the power basis: coefficient j is C(n, j) * sum over i <= j of (-1)^(j - i) *
+	 * C(j, i) * p[i]
+	 */
+	private static double[] toPowerBasis(double[] p) {
+		int n = p.length - 1;
+		double[] result = new double[p.length];
+		double nChooseJ = 1;
+		for (int j = 0; j <= n; j++) {
+			double sum = 0;
+			double jChooseI = 1;
+			for (int i = 0; i <= j; i++) {
+				sum += ((j - i) % 2 == 0 ? 1 : -1) * jChooseI * p[i];
+				jChooseI = jChooseI * (j - i) / (i + 1);
+			}
+			result[j] = nChooseJ * sum;
+			nChooseJ = nChooseJ * (n - j) / (j + 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Splits a curve in half with de Casteljau's algorithm. Works on control
+	 * points of any curve, so that code that subdivides curves doesn't need to
+	 * make a BezierCurve for each piece.
+	 * 
+	 * @param x
+	 *            x coordinates of the control points. Overwritten with those of the
+	 *            second half, from t = 1/2 to 1
+	 * @param y
+	 *            y coordinates, same as x
+	 * @param firstX
+	 *            gets x coordinates of the first half, from t = 0 to 1/2. Same
+	 *            length as x
+	 * @param firstY
+	 *            gets y coordinates of the first half
+	 */
+	public static void splitInHalf(double[] x, double[] y, double[] firstX, double[] firstY) {
+		// the first half's control points are the first points of each level, and the
+		// second half's are the last ones, which are left behind in x and y
+		int n = x.length - 1;
+		for (int k = 0; k <= n; k++) {
+			firstX[k] = x[0];
+			firstY[k] = y[0];
+			for (int i = 0; i < n - k; i++) {
+				x[i] = (x[i] + x[i + 1]) / 2;
+				y[i] = (y[i] + y[i + 1]) / 2;
+			}
+		}
+	}
+
+	/**
+	 * @return furthest distance of any control point from the line through the
+	 *         first and last ones, which bounds how far the curve is from that
+	 *         line
+	 */
+	public static double flatness(double[] x, double[] y) {
+		int n = x.length - 1;
+		double dx = x[n] - x[0];
+		double dy = y[n] - y[0];
+		double length = Math.sqrt(dx * dx + dy * dy);
+		double result = 0;
+		for (int i = 1; i < n; i++) {
+			double ox = x[i] - x[0];
+			double oy = y[i] - y[0];
+			result = Math.max(result,
+					length == 0 ? Math.sqrt(ox * ox + oy * oy) : Math.abs(dx * oy - dy * ox) / length);
+		}
+		return result;
+	}
+
+	private static double horner(double[] coefficients, double t) {
+		double result = coefficients[coefficients.length - 1];
+		for (int i = coefficients.length - 2; i >= 0; i--) {
+			result = result * t + coefficients[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Evaluates one coordinate in this thread's scratch array, so curves above
+	 * {@link #MAX_POWER_BASIS_DEGREE} don't allocate either once the array is big
+	 * enough. Curves are shared between threads, so the scratch can't belong to
+	 * the curve
+	 */
+	private static double deCasteljau(double[] points, double t) {
+		double[] p = SCRATCH.get();
+		if (p.length < points.length) {
+			p = new double[points.length];
+			SCRATCH.set(p);
+		}
+		System.arraycopy(points, 0, p, 0, points.length);
+		for (int k = points.length; k > 1; k--) {
+			for (int i = 0; i < k - 1; i++) {
+				p[i] = p[i] * (1 - t) + p[i + 1] * t;
+			}
+		}
+		return p[0];
 	}
 
 	private BezierCurve calculateDerivative() {
@@ -41,44 +243,134 @@ public final class BezierCurve implements Curve {
 
 	public Vector deCasteljau(double t) {
 		// return bezier(t);
-		return deCasteljau(Arrays.copyOf(controlPointsX, controlPointsX.length),
-				Arrays.copyOf(controlPointsY, controlPointsY.length), controlPoints.length, t);
+		return new Vector(getX(t), getY(t));
 	}
 
-	private Vector deCasteljau(double[] x, double[] y, int length, double t) {
+	/**
+	 * Runs de Casteljau's algorithm without allocating anything
+	 * 
+	 * @param t
+	 *            parameter to evaluate at
+	 * @param scratchX
+	 *            work array, at least as long as the number of control points.
+	 *            Gets overwritten
+	 * @param scratchY
+	 *            work array, same as scratchX
+	 * @param out
+	 *            gets x in out[0] and y in out[1]
+	 */
+	public void deCasteljau(double t, double[] scratchX, double[] scratchY, double[] out) {
+		int length = controlPointsX.length;
+		System.arraycopy(controlPointsX, 0, scratchX, 0, length);
+		System.arraycopy(controlPointsY, 0, scratchY, 0, length);
 		for (int k = length; k > 1; k--) {
 			for (int i = 0; i < k - 1; i++) {
 				double mt = 1 - t;
-				x[i] = x[i] * mt + x[i + 1] * t;
-				y[i] = y[i] * mt + y[i + 1] * t;
+				scratchX[i] = scratchX[i] * mt + scratchX[i + 1] * t;
+				scratchY[i] = scratchY[i] * mt + scratchY[i + 1] * t;
 			}
 		}
-		return new Vector(x[0], y[0]);
+		out[0] = scratchX[0];
+		out[1] = scratchY[0];
+	}
+
+	/**
+	 * Evaluates the curve without allocating anything
+	 * 
+	 * @param t
+	 *            parameter to evaluate at
+	 * @param out
+	 *            gets x in out[0] and y in out[1]
+	 */
+	public void evaluate(double t, double[] out) {
+		out[0] = getX(t);
+		out[1] = getY(t);
+	}
+
+	public double getX(double t) {
+		return powerX != null ? horner(powerX, t) : deCasteljau(controlPointsX, t);
+	}
+
+	public double getY(double t) {
+		return powerY != null ? horner(powerY, t) : deCasteljau(controlPointsY, t);
 	}
 
 	public BezierCurve derivative() {
-		if (derivative == null)
-			derivative = calculateDerivative();
 		return derivative;
 	}
 
 	public double arcLengthDerivative(double t) {
-		return derivative().deCasteljau(t).magnitude();
+		BezierCurve d = derivative();
+		double dx = d.getX(t);
+		double dy = d.getY(t);
+		return Math.sqrt(dx * dx + dy * dy);
 	}
 
+	/**
+	 * @return arc length between two values of t, within
+	 *         {@link #INTEGRATION_TOLERANCE}
+	 */
 	public double arcLengthIntegral(double lower, double upper) {
-		return Util.gaussQuadIntegrate64(this::arcLengthDerivative, lower, upper);
+		return Util.gaussKronrodIntegrate(speed, lower, upper, INTEGRATION_TOLERANCE);
 	}
 
+	/**
+	 * Builds the t to arc length table if it hasn't been built yet. The table is
+	 * adaptive, so it only gets dense where the curve's speed changes quickly; see
+	 * {@link #setTableTolerance(double)}.
+	 */
 	public void makeTable() {
 		if (tToArcLengthTable == null) {
-			tToArcLengthTable = new LookupTable(this::arcLengthIntegral, 0, 1);
+			synchronized (this) {
+				if (tToArcLengthTable == null) {
+					tToArcLengthTable = buildTable();
+				}
+			}
 		}
 	}
 
+	private LookupTable buildTable() {
+		long start = Instrumentation.start(Stage.TABLE_BUILD);
+		LookupTable table = null;
+		try {
+			table = LookupTable.adaptive(this::arcLengthIntegral, this::arcLengthDerivative, 0, 1, tableTolerance);
+			return table;
+		} finally {
+			Instrumentation.finish(Stage.TABLE_BUILD, start, 0, controlPoints.length - 1,
+					table == null ? 0 : table.getResolution());
+		}
+	}
+
+	/**
+	 * Sets how far off arc lengths read from the table may be. Smaller tolerances
+	 * make the table bigger and slower to build. If the table was already built,
+	 * it gets rebuilt the next time it's used.
+	 * 
+	 * @param tolerance
+	 *            largest error in inches, defaults to
+	 *            {@link #DEFAULT_TABLE_TOLERANCE}
+	 */
+	public synchronized void setTableTolerance(double tolerance) {
+		checkNotFrozen();
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("tolerance must be positive: " + tolerance);
+		if (tolerance != tableTolerance) {
+			tableTolerance = tolerance;
+			tToArcLengthTable = null;
+		}
+	}
+
+	public double getTableTolerance() {
+		return tableTolerance;
+	}
+
 	public LookupTable getTable() {
-		makeTable();
-		return tToArcLengthTable;
+		LookupTable table = tToArcLengthTable;
+		if (table == null) {
+			makeTable();
+			table = tToArcLengthTable;
+		}
+		return table;
 	}
 
 	public double getArcLength(double t) {
@@ -86,13 +378,106 @@ public final class BezierCurve implements Curve {
 	}
 
 	public double tFromArcLength(double arcLength) {
-		return getTable().getInput(arcLength);
+		LookupTable table = getTable();
+		if (newtonSteps == 0) {
+			return table.getInput(arcLength);
+		}
+		return tFromArcLength(arcLength, table.outputToIndex(arcLength));
+	}
+
+	/**
+	 * Makes {@link #tFromArcLength(double)} refine the table's guess with Newton's
+	 * method instead of returning it directly. Each step integrates the speed from
+	 * the closest table entry below the guess, so a few steps give t to near
+	 * machine precision no matter how coarse the table is. That makes it
+	 * reasonable to build the table with a much looser
+	 * {@link #setTableTolerance(double) tolerance}.
+	 * 
+	 * @param steps
+	 *            maximum number of Newton steps per inversion, 0 (the default) to
+	 *            only interpolate the table
+	 */
+	public void setNewtonSteps(int steps) {
+		checkNotFrozen();
+		if (steps < 0)
+			throw new IllegalArgumentException("steps must not be negative: " + steps);
+		newtonSteps = steps;
+	}
+
+	public int getNewtonSteps() {
+		return newtonSteps;
+	}
+
+	/**
+	 * @param index
+	 *            index of the table entry whose arc length is just below arcLength
+	 */
+	private double tFromArcLength(double arcLength, int index) {
+		LookupTable table = getTable();
+		double lowerT = table.getInputAt(index);
+		double upperT = table.getInputAt(index + 1);
+		double lowerArcLength = table.getOutputAt(index);
+		double upperArcLength = table.getOutputAt(index + 1);
+		if (arcLength <= lowerArcLength) {
+			return lowerT;
+		} else if (arcLength >= upperArcLength) {
+			return upperT;
+		}
+		double t = Util.lerp(lowerT, upperT, (arcLength - lowerArcLength) / (upperArcLength - lowerArcLength));
+		for (int step = 0; step < newtonSteps; step++) {
+			double error = lowerArcLength + Util.gaussLegendre8(speed, lowerT, t) - arcLength;
+			double slope = arcLengthDerivative(t);
+			if (Math.abs(error) <= NEWTON_TOLERANCE || slope == 0) {
+				break;
+			}
+			// the root is always inside this table entry, so never step outside of it
+			t = Util.limit(t - error / slope, lowerT, upperT);
+		}
+		return t;
+	}
+
+	/**
+	 * Inverts every arc length once, walking the table forward with a cursor, and
+	 * evaluates the curve and its derivatives at the resulting t
+	 */
+	@Override
+	public void sampleAtArcLengths(double[] arcLengths, int from, int to, double[] x, double[] y, double[] heading,
+			double[] curvature) {
+		LookupTable table = getTable();
+		BezierCurve d1 = derivative();
+		BezierCurve d2 = d1.derivative();
+		int index = 0;
+		for (int i = from; i < to; i++) {
+			index = table.outputToIndex(arcLengths[i], index);
+			double t = tFromArcLength(arcLengths[i], index);
+			if (x != null)
+				x[i] = getX(t);
+			if (y != null)
+				y[i] = getY(t);
+			if (heading != null || curvature != null) {
+				double dx = d1.getX(t);
+				double dy = d1.getY(t);
+				if (heading != null)
+					heading[i] = -Math.atan2(dy, dx) + Math.PI / 2;
+				if (curvature != null)
+					curvature[i] = Util.curvature2d(dx, d2.getX(t), dy, d2.getY(t));
+			}
+		}
 	}
 
 	public double curvature(double t) {
-		Vector d1 = derivative().deCasteljau(t);
-		Vector d2 = derivative().derivative().deCasteljau(t);
-		return Util.curvature2d(d1.x, d2.x, d1.y, d2.y);
+		BezierCurve d1 = derivative();
+		BezierCurve d2 = d1.derivative();
+		return Util.curvature2d(d1.getX(t), d2.getX(t), d1.getY(t), d2.getY(t));
+	}
+
+	/**
+	 * @return heading of the tangent at t, same convention as
+	 *         {@link Vector#getHeading()}
+	 */
+	public double heading(double t) {
+		BezierCurve d = derivative();
+		return -Math.atan2(d.getY(t), d.getX(t)) + Math.PI / 2;
 	}
 
 	@Override
@@ -119,13 +504,9 @@ public final class BezierCurve implements Curve {
 		return result;
 	}
 
-	private Vector tangent(double t) {
-		return derivative.deCasteljau(t);
-	}
-
 	@Override
 	public double getHeadingAtArcLength(double arcLength) {
-		return tangent(tFromArcLength(arcLength)).getHeading();
+		return heading(tFromArcLength(arcLength));
 	}
 
 }
\ No newline at end of file
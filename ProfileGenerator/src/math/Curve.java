@@ -24,4 +24,45 @@ public interface Curve {
 	 * @return the heading in radians
 	 */
 	public double getHeadingAtArcLength(double arcLength);
+
+	/**
+	 * Samples many arc lengths in one pass. Curves that have to invert arc length
+	 * do it once per sample instead of once per quantity, and can walk their
+	 * tables forward instead of searching them from scratch, so arc lengths should
+	 * be sorted in increasing order. Results are written at the same index as the
+	 * arc length they belong to.
+	 * 
+	 * @param arcLengths
+	 *            arc lengths along this curve, sorted in increasing order
+	 * @param from
+	 *            first index to sample, inclusive
+	 * @param to
+	 *            last index to sample, exclusive
+	 * @param x
+	 *            gets x coordinates of the points, or null to skip
+	 * @param y
+	 *            gets y coordinates of the points, or null to skip
+	 * @param heading
+	 *            gets headings, see {@link #getHeadingAtArcLength(double)}, or
+	 *            null to skip
+	 * @param curvature
+	 *            gets curvatures, see {@link #getCurvatureAtArcLength(double)}, or
+	 *            null to skip
+	 */
+	public default void sampleAtArcLengths(double[] arcLengths, int from, int to, double[] x, double[] y,
+			double[] heading, double[] curvature) {
+		for (int i = from; i < to; i++) {
+			if (x != null || y != null) {
+				Vector point = getPointAtArcLength(arcLengths[i]);
+				if (x != null)
+					x[i] = point.x;
+				if (y != null)
+					y[i] = point.y;
+			}
+			if (heading != null)
+				heading[i] = getHeadingAtArcLength(arcLengths[i]);
+			if (curvature != null)
+				curvature[i] = getCurvatureAtArcLength(arcLengths[i]);
+		}
+	}
 }
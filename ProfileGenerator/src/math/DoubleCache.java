@@ -0,0 +1,65 @@
+package math;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size memo from double keys to double values. Each key hashes to a
+ * single slot, and storing a key evicts whatever was in its slot before, so the
+ * cache never grows past the capacity it was made with and never allocates
+ * after construction.
+ */
+public final class DoubleCache {
+
+	private final double[] keys;
+	private final double[] values;
+	private final int mask;
+
+	/**
+	 *
+	 * @param capacity
+	 *            maximum number of entries kept. Rounded up to a power of two
+	 */
+	public DoubleCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		keys = new double[size];
+		values = new double[size];
+		mask = size - 1;
+		clear();
+	}
+
+	private int slot(double key) {
+		long bits = Double.doubleToLongBits(key);
+		bits ^= bits >>> 33;
+		bits *= 0xff51afd7ed558ccdL;
+		bits ^= bits >>> 33;
+		return (int) bits & mask;
+	}
+
+	/**
+	 * @return the value stored for key, or NaN if it isn't cached
+	 */
+	public double get(double key) {
+		int i = slot(key);
+		return keys[i] == key ? values[i] : Double.NaN;
+	}
+
+	public void put(double key, double value) {
+		int i = slot(key);
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	public void clear() {
+		// NaN never equals anything, so empty slots can't produce a hit
+		Arrays.fill(keys, Double.NaN);
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+}
@@ -74,6 +74,25 @@ public class LineSegment implements Curve {
 		return getPointAtD(arcLength);
 	}
 
+	@Override
+	public void sampleAtArcLengths(double[] arcLengths, int from, int to, double[] x, double[] y, double[] heading,
+			double[] curvature) {
+		Vector direction = getDirection();
+		double cosine = direction.cosine();
+		double sine = direction.sine();
+		double lineHeading = direction.getHeading();
+		for (int i = from; i < to; i++) {
+			if (x != null)
+				x[i] = start.x + cosine * arcLengths[i];
+			if (y != null)
+				y[i] = start.y + sine * arcLengths[i];
+			if (heading != null)
+				heading[i] = lineHeading;
+			if (curvature != null)
+				curvature[i] = 0;
+		}
+	}
+
 	@Override
 	public String toString() {
 		return String.format("(%s), (%s)", start.toString(), end.toString());
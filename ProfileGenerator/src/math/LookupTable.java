@@ -1,115 +1,493 @@
 package math;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.Arrays;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
 
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Counter;
+
+/**
+ * Table mapping a monotonically increasing function between its input and its
+ * output. The table is stored as two primitive arrays that share an index, so
+ * lookups in either direction never box or allocate.
+ *
+ * A table is either built with a fixed resolution, where inputs are uniformly
+ * spaced and finding the bracketing entries for an input is plain index
+ * arithmetic, or adaptively, where inputs are only placed as close together as
+ * needed to keep the interpolation error under a tolerance. Adaptive tables use
+ * a binary search over the inputs instead. Outputs are sorted (the function
+ * must be non-decreasing), so finding the bracketing entries for an output is
+ * always a binary search.
+ *
+ * Building a table evaluates the function from several threads at once, so it
+ * must be safe to call concurrently. The finished table doesn't depend on the
+ * number of threads.
+ *
+ * Queries never modify the table; it always holds exactly resolution entries.
+ * Repeated queries can optionally be memoized in a bounded cache, see
+ * {@link #setCacheSize(int)}. Without a cache, a table can be queried from any
+ * number of threads at once. {@link #freeze()} makes sure it stays that way.
+ */
 public class LookupTable {
 
 	public static final int DEFAULT_SIZE = 150;
 
-	private final BiFunction<Double, Double, Double> deltaY;
+	/**
+	 * Number of equal pieces an adaptive table always starts from, so that a
+	 * function that happens to be symmetric over the whole range still gets
+	 * checked for curvature. The pieces are also what gets built in parallel
+	 */
+	private static final int ADAPTIVE_START_PIECES = 8;
+	/**
+	 * Number of entries of a fixed resolution table that get built together as
+	 * one parallel task
+	 */
+	private static final int CHUNK_SIZE = 16;
+	/**
+	 * Limit on how many times an adaptive table halves a piece of the range
+	 */
+	private static final int ADAPTIVE_MAX_DEPTH = 20;
+
+	private final DoubleBinaryOperator deltaY;
+	private final DoubleUnaryOperator derivative;
 	private final double lowerInput;
 	// private final double upperInput;
 	private final double range;
 
 	private int resolution;
 	private double increment;
-	private NavigableMap<Double, Double> inOut;
-	private NavigableMap<Double, Double> outIn;
+	private boolean uniform;
+	private double tolerance = Double.NaN;
+	private double[] inputs;
+	private double[] outputs;
+	private DoubleCache outputCache = null;
+	private DoubleCache inputCache = null;
+	private boolean frozen = false;
 
-	public LookupTable(BiFunction<Double, Double, Double> deltaY, double lowerInput, double upperInput) {
+	public LookupTable(DoubleBinaryOperator deltaY, double lowerInput, double upperInput) {
 		this(deltaY, lowerInput, upperInput, DEFAULT_SIZE);
 	}
 
-	public LookupTable(BiFunction<Double, Double, Double> function, double lowerInput, double upperInput,
-			int resolution) {
+	/**
+	 *
+	 * @param function
+	 *            gives the change in output between two inputs. Must never be
+	 *            negative
+	 * @param lowerInput
+	 *            smallest input in the table, maps to an output of 0
+	 * @param upperInput
+	 *            largest input in the table
+	 * @param resolution
+	 *            number of entries in the table, must be at least 2
+	 */
+	public LookupTable(DoubleBinaryOperator function, double lowerInput, double upperInput, int resolution) {
 		super();
 		this.deltaY = function;
 		this.lowerInput = lowerInput;
 		// this.upperInput = upperInput;
 		this.range = upperInput - lowerInput;
+		this.derivative = null;
 		setResolution(resolution);
 	}
 
+	private LookupTable(DoubleBinaryOperator function, DoubleUnaryOperator derivative, double lowerInput,
+			double upperInput, double tolerance) {
+		super();
+		this.deltaY = function;
+		this.derivative = derivative;
+		this.lowerInput = lowerInput;
+		this.range = upperInput - lowerInput;
+		setTolerance(tolerance);
+	}
+
+	/**
+	 * Copies everything but the cache. The arrays are shared, which is fine since
+	 * a table never writes to its arrays after building them; rebuilding makes
+	 * new ones.
+	 */
+	private LookupTable(LookupTable source) {
+		super();
+		this.deltaY = source.deltaY;
+		this.derivative = source.derivative;
+		this.lowerInput = source.lowerInput;
+		this.range = source.range;
+		this.resolution = source.resolution;
+		this.increment = source.increment;
+		this.uniform = source.uniform;
+		this.tolerance = source.tolerance;
+		this.inputs = source.inputs;
+		this.outputs = source.outputs;
+	}
+
+	/**
+	 * Makes a table whose entries are only as dense as needed. Pieces of the range
+	 * are halved wherever the function's derivative changes quickly, until
+	 * linearly interpolating across a piece is estimated to be off by no more than
+	 * tolerance. Ranges where the function is close to linear end up with very few
+	 * entries. The derivative is only used to decide where to place entries, so it
+	 * is sampled once per piece instead of integrated.
+	 *
+	 * @param function
+	 *            gives the change in output between two inputs. Must never be
+	 *            negative
+	 * @param derivative
+	 *            derivative of the output with respect to the input
+	 * @param lowerInput
+	 *            smallest input in the table, maps to an output of 0
+	 * @param upperInput
+	 *            largest input in the table
+	 * @param tolerance
+	 *            largest allowed interpolation error, in units of the output
+	 * @return the new table
+	 */
+	public static LookupTable adaptive(DoubleBinaryOperator function, DoubleUnaryOperator derivative,
+			double lowerInput, double upperInput, double tolerance) {
+		return new LookupTable(function, derivative, lowerInput, upperInput, tolerance);
+	}
+
+	/**
+	 * Rebuilds this table with resolution uniformly spaced entries
+	 */
 	public void setResolution(int resolution) {
+		checkNotFrozen();
 		this.resolution = resolution;
 		this.increment = range / ((double) resolution - 1);
+		this.uniform = true;
+		this.tolerance = Double.NaN;
 		makeLUT();
+		clearCache();
+	}
+
+	/**
+	 * Rebuilds this table adaptively, see
+	 * {@link #adaptive(DoubleBinaryOperator, DoubleUnaryOperator, double, double, double)}.
+	 * Only tables that were made adaptive have a derivative to do this with.
+	 */
+	public void setTolerance(double tolerance) {
+		checkNotFrozen();
+		if (derivative == null)
+			throw new IllegalStateException("table was made without a derivative");
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("tolerance must be positive: " + tolerance);
+		this.tolerance = tolerance;
+		this.uniform = false;
+		makeAdaptiveLUT();
+		this.resolution = inputs.length;
+		this.increment = Double.NaN;
+		clearCache();
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * @return the interpolation tolerance the table was built with, or NaN if it
+	 *         was built with a fixed resolution
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * Memoizes the results of {@link #getOutput(double)} and
+	 * {@link #getInput(double)}. Each direction gets a {@link DoubleCache} with
+	 * size rounded up to a power of two slots, so it can hold up to that many
+	 * entries. A new entry evicts whichever one hashed to the same slot. Off by
+	 * default.
+	 *
+	 * @param size
+	 *            entries per direction, rounded up to a power of two, or 0 to turn
+	 *            memoization off
+	 */
+	public void setCacheSize(int size) {
+		checkNotFrozen();
+		if (size == 0) {
+			outputCache = null;
+			inputCache = null;
+		} else {
+			outputCache = new DoubleCache(size);
+			inputCache = new DoubleCache(size);
+		}
+	}
+
+	public void clearCache() {
+		if (outputCache != null) {
+			outputCache.clear();
+			inputCache.clear();
+		}
+	}
+
+	/**
+	 * Stops this table from ever changing again: it drops its cache, and
+	 * rebuilding it or turning the cache back on throws an
+	 * IllegalStateException. Every query after that only reads the table, so it
+	 * is safe to share between threads without locking, as long as it is
+	 * published safely (for example through a final or volatile field).
+	 */
+	public void freeze() {
+		outputCache = null;
+		inputCache = null;
+		frozen = true;
+	}
+
+	/**
+	 * @return a frozen table with the same entries as this one, without building
+	 *         it again. This table is returned if it is already frozen
+	 */
+	public LookupTable frozenCopy() {
+		if (frozen)
+			return this;
+		LookupTable copy = new LookupTable(this);
+		copy.freeze();
+		return copy;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkNotFrozen() {
+		if (frozen)
+			throw new IllegalStateException("table is frozen");
 	}
 
 	private double indexToInput(int i) {
 		return lowerInput + i * increment;
 	}
 
+	/**
+	 * Evaluates the function for every entry in parallel. The table is cut into
+	 * chunks of a fixed size; each chunk sums its own changes starting from 0, and
+	 * then every chunk gets shifted by the total of the chunks before it. Chunk
+	 * boundaries don't depend on how many threads there are, so the result is
+	 * always the same.
+	 */
 	private void makeLUT() {
-		inOut = new TreeMap<>();
-		inOut.put(lowerInput, 0.0);
-		outIn = new TreeMap<>();
-		outIn.put(0.0, lowerInput);
-		List<Double> puts = new ArrayList<>(resolution);
-		puts.add(0.0);
-
-		for (int i = 1; i < resolution; i++) {
-			int index = i; // need to do this for lambda expression below
-			double prevIn = indexToInput(index - 1);
-			double currentIn = indexToInput(index);
-			double change = deltaY.apply(prevIn, currentIn);
-			double prevResult = puts.get(index - 1);
-			double result = prevResult + change;
-			inOut.put(currentIn, result);
-			outIn.put(result, currentIn);
-			puts.add(result);
-		}
-	}
-
-	// private int inputToIndex(double input) {
-	// return (int) Math.floor((input - lowerInput) / increment);
-	// }
+		inputs = new double[resolution];
+		outputs = new double[resolution];
+		for (int i = 0; i < resolution; i++) {
+			inputs[i] = indexToInput(i);
+		}
+		outputs[0] = 0.0;
 
-	public double getOutput(double input) {
-		Entry<Double, Double> lower = inOut.floorEntry(input);
-		Entry<Double, Double> upper = inOut.ceilingEntry(input);
+		int chunks = (resolution - 1 + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		IntStream.range(0, chunks).parallel().forEach(c -> {
+			int end = Math.min((c + 1) * CHUNK_SIZE, resolution - 1);
+			double sum = 0;
+			for (int i = c * CHUNK_SIZE + 1; i <= end; i++) {
+				sum += deltaY.applyAsDouble(inputs[i - 1], inputs[i]);
+				outputs[i] = sum;
+			}
+		});
+		for (int c = 1; c < chunks; c++) {
+			double offset = outputs[c * CHUNK_SIZE];
+			int end = Math.min((c + 1) * CHUNK_SIZE, resolution - 1);
+			for (int i = c * CHUNK_SIZE + 1; i <= end; i++) {
+				outputs[i] += offset;
+			}
+		}
+	}
 
-		if (lower == null && upper == null) {
-			System.err.println("ERROR: BOTH SHOULDN'T BE NULL");
-			return 0.0;
-		} else if (lower == null) {
-			return upper.getValue();
+	/**
+	 * Builds each of the starting pieces in parallel, then joins them in order,
+	 * shifting each piece's outputs by the total of the pieces before it
+	 */
+	private void makeAdaptiveLUT() {
+		double[] bounds = new double[ADAPTIVE_START_PIECES + 1];
+		double[] slopes = new double[ADAPTIVE_START_PIECES + 1];
+		for (int i = 0; i <= ADAPTIVE_START_PIECES; i++) {
+			bounds[i] = i == ADAPTIVE_START_PIECES ? lowerInput + range
+					: lowerInput + i * range / ADAPTIVE_START_PIECES;
+			slopes[i] = derivative.applyAsDouble(bounds[i]);
+		}
+		AdaptiveBuilder[] pieces = new AdaptiveBuilder[ADAPTIVE_START_PIECES];
+		IntStream.range(0, ADAPTIVE_START_PIECES).parallel().forEach(i -> {
+			pieces[i] = new AdaptiveBuilder();
+			pieces[i].subdivide(bounds[i], bounds[i + 1], slopes[i], slopes[i + 1], 0);
+		});
 
-		} else if (upper == null) {
-			return lower.getValue();
+		int size = 1;
+		for (AdaptiveBuilder piece : pieces) {
+			size += piece.size;
 		}
+		inputs = new double[size];
+		outputs = new double[size];
+		inputs[0] = lowerInput;
+		outputs[0] = 0.0;
+		int index = 1;
+		for (AdaptiveBuilder piece : pieces) {
+			double offset = outputs[index - 1];
+			for (int i = 0; i < piece.size; i++) {
+				inputs[index] = piece.in[i];
+				outputs[index] = piece.out[i] + offset;
+				index++;
+			}
+		}
+	}
 
-		double mu = (input - lower.getKey()) / (upper.getKey() - lower.getKey());
-		Function<Double, Double> f = d -> Util.lerp(lower.getValue(), upper.getValue(), mu);
+	/**
+	 * Collects the entries of one piece of an adaptive table in increasing order.
+	 * Outputs are relative to the start of the piece.
+	 */
+	private class AdaptiveBuilder {
+		private double[] in = new double[16];
+		private double[] out = new double[16];
+		private int size = 0;
+		private double total = 0;
 
-		return inOut.computeIfAbsent(input, f);
+		void subdivide(double lower, double upper, double lowerSlope, double upperSlope, int depth) {
+			double middle = (lower + upper) / 2;
+			double middleSlope = derivative.applyAsDouble(middle);
+			/*
+			 * Interpolating across [lower, upper] is off by about width^2 / 8 times the
+			 * second derivative at the middle. The second derivative is estimated from the
+			 * larger change in slope over either half, so that a bump that is symmetric
+			 * about the middle doesn't look flat.
+			 */
+			double width = upper - lower;
+			double slopeChange = Math.max(Math.abs(middleSlope - lowerSlope), Math.abs(upperSlope - middleSlope));
+			double error = width * slopeChange / 4;
+			if (depth >= ADAPTIVE_MAX_DEPTH || error <= tolerance) {
+				total += deltaY.applyAsDouble(lower, upper);
+				add(upper, total);
+			} else {
+				subdivide(lower, middle, lowerSlope, middleSlope, depth + 1);
+				subdivide(middle, upper, middleSlope, upperSlope, depth + 1);
+			}
+		}
+
+		void add(double input, double output) {
+			if (size == in.length) {
+				in = Arrays.copyOf(in, size * 2);
+				out = Arrays.copyOf(out, size * 2);
+			}
+			in[size] = input;
+			out[size] = output;
+			size++;
+		}
 	}
 
-	// basically does an interpolation search on the tree
-	public double getInput(double output) {
-		Entry<Double, Double> lower = outIn.floorEntry(output);
-		Entry<Double, Double> upper = outIn.ceilingEntry(output);
+	/**
+	 * @return index of the last entry whose input is at or below input, limited
+	 *         so that there is always an entry after it
+	 */
+	private int inputToIndex(double input) {
+		if (!uniform) {
+			return floorIndex(inputs, input);
+		}
+		int i = (int) ((input - lowerInput) / increment);
+		return i < 0 ? 0 : i > resolution - 2 ? resolution - 2 : i;
+	}
 
-		if (lower == null && upper == null) {
-			System.err.println("ERROR: BOTH SHOULDN'T BE NULL");
-			return 0.0;
-		} else if (lower == null) {
-			return upper.getValue();
+	/**
+	 * @return index of the last entry whose output is at or below output, limited
+	 *         so that there is always an entry after it
+	 */
+	public int outputToIndex(double output) {
+		Instrumentation.count(Counter.LUT_QUERIES);
+		return floorIndex(outputs, output);
+	}
 
-		} else if (upper == null) {
-			return lower.getValue();
+	/**
+	 * Same as {@link #outputToIndex(double)}, but starts looking at hint and walks
+	 * forward from there. When outputs are queried in increasing order, passing
+	 * the previous result as the hint makes each lookup amortized constant time.
+	 */
+	public int outputToIndex(double output, int hint) {
+		Instrumentation.count(Counter.LUT_QUERIES);
+		if (hint < 0 || hint > resolution - 2 || outputs[hint] > output) {
+			return floorIndex(outputs, output);
 		}
+		int i = hint;
+		while (i < resolution - 2 && outputs[i + 1] <= output) {
+			i++;
+		}
+		return i;
+	}
 
-		double mu = (output - lower.getKey()) / (upper.getKey() - lower.getKey());
-		Function<Double, Double> f = d -> Util.lerp(lower.getValue(), upper.getValue(), mu);
+	public double getInputAt(int index) {
+		return inputs[index];
+	}
+
+	public double getOutputAt(int index) {
+		return outputs[index];
+	}
 
-		return outIn.computeIfAbsent(output, f);
+	private int floorIndex(double[] sorted, double value) {
+		int low = 0;
+		int high = resolution - 1;
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] <= value) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the output for input, linearly interpolated between the two closest
+	 *         entries. Inputs outside of the table are clamped to its ends.
+	 */
+	public double getOutput(double input) {
+		Instrumentation.count(Counter.LUT_QUERIES);
+		if (outputCache == null) {
+			return computeOutput(input);
+		}
+		double output = outputCache.get(input);
+		if (Double.isNaN(output)) {
+			output = computeOutput(input);
+			outputCache.put(input, output);
+		}
+		return output;
+	}
+
+	private double computeOutput(double input) {
+		if (input <= inputs[0]) {
+			return outputs[0];
+		} else if (input >= inputs[resolution - 1]) {
+			return outputs[resolution - 1];
+		}
+		int i = inputToIndex(input);
+		double mu = (input - inputs[i]) / (inputs[i + 1] - inputs[i]);
+		return Util.lerp(outputs[i], outputs[i + 1], mu);
+	}
+
+	/**
+	 * @return the input that gives output, linearly interpolated between the two
+	 *         closest entries. Outputs outside of the table are clamped to its ends.
+	 */
+	public double getInput(double output) {
+		Instrumentation.count(Counter.LUT_QUERIES);
+		if (inputCache == null) {
+			return computeInput(output);
+		}
+		double input = inputCache.get(output);
+		if (Double.isNaN(input)) {
+			input = computeInput(output);
+			inputCache.put(output, input);
+		}
+		return input;
+	}
+
+	private double computeInput(double output) {
+		if (output <= outputs[0]) {
+			return inputs[0];
+		} else if (output >= outputs[resolution - 1]) {
+			return inputs[resolution - 1];
+		}
+		int i = floorIndex(outputs, output);
+		double span = outputs[i + 1] - outputs[i];
+		if (span == 0) {
+			return inputs[i];
+		}
+		double mu = (output - outputs[i]) / span;
+		return Util.lerp(inputs[i], inputs[i + 1], mu);
 	}
 
 }
@@ -1,7 +1,11 @@
 package math;
 
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Counter;
+
 public class Util {
 
 	private static final double[][] gaussQuad64 = { { 0.0486909570091397, -0.0243502926634244 },
@@ -44,6 +48,30 @@ public class Util {
 			{ 0.2223810344533745, 0.7966664774136267 }, { 0.1012285362903763, -0.9602898564975363 },
 			{ 0.1012285362903763, 0.9602898564975363 } };
 
+	/**
+	 * Kronrod nodes of the 15 point Gauss-Kronrod rule, largest first. The odd
+	 * indices (and the 0 at the end) are also the nodes of the 7 point Gauss rule
+	 */
+	private static final double[] kronrodNodes = { 0.991455371120812639206854697526329,
+			0.949107912342758524526189684047851, 0.864864423359769072789712788640926,
+			0.741531185599394439863864773280788, 0.586087235467691130294144845693013,
+			0.405845151377397166906606412076961, 0.207784955007898467600689403773245, 0.0 };
+	private static final double[] kronrodWeights = { 0.022935322010529224963732008058970,
+			0.063092092629978553290700663189204, 0.104790010322250183839876322541518,
+			0.140653259715525918745189590510238, 0.169004726639267902826583426598550,
+			0.190350578064785409913256402421014, 0.204432940075298892414161999234649,
+			0.209482141084727828012999174891714 };
+	/**
+	 * Weights of the 7 point Gauss rule, for kronrodNodes 1, 3, 5 and 7
+	 */
+	private static final double[] gauss7Weights = { 0.129484966168869693270611432679082,
+			0.279705391489276667901467771423780, 0.381830050505118944950369775488975,
+			0.417959183673469387755102040816327 };
+	/**
+	 * Limit on how many times {@link #gaussKronrodIntegrate} halves an interval
+	 */
+	private static final int GAUSS_KRONROD_MAX_DEPTH = 30;
+
 	/**
 	 * Integrates function from 0 to z
 	 * 
@@ -56,27 +84,95 @@ public class Util {
 	 * @return the approximate integral
 	 */
 	public static double gaussQuadIntegrate64(Function<Double, Double> function, double lower, double upper) {
+		return gaussLegendre64(function::apply, lower, upper);
+	}
+
+	public static double gaussQuadIntegrate8(Function<Double, Double> function, double lower, double upper) {
+		return gaussLegendre8(function::apply, lower, upper);
+	}
+
+	/**
+	 * Same as {@link #gaussQuadIntegrate64(Function, double, double)}, but
+	 * without boxing any of the samples
+	 */
+	public static double gaussLegendre64(DoubleUnaryOperator function, double lower, double upper) {
 		if (upper - lower == 0)
 			return 0;
+		Instrumentation.count(Counter.QUADRATURE_EVALUATIONS, gaussQuad64.length);
 		double sum = 0;
 		for (int i = 0; i < gaussQuad64.length; i++) {
 			double input = (upper - lower) * gaussQuad64[i][1] / 2 + (upper + lower) / 2;
-			sum += gaussQuad64[i][0] * function.apply(input);
+			sum += gaussQuad64[i][0] * function.applyAsDouble(input);
 		}
 		return sum * (upper - lower) / 2;
 	}
 
-	public static double gaussQuadIntegrate8(Function<Double, Double> function, double lower, double upper) {
+	/**
+	 * Same as {@link #gaussQuadIntegrate8(Function, double, double)}, but without
+	 * boxing any of the samples
+	 */
+	public static double gaussLegendre8(DoubleUnaryOperator function, double lower, double upper) {
 		if (upper - lower == 0)
 			return 0;
+		Instrumentation.count(Counter.QUADRATURE_EVALUATIONS, gaussQuad8.length);
 		double sum = 0;
 		for (int i = 0; i < gaussQuad8.length; i++) {
 			double input = (upper - lower) * gaussQuad8[i][1] / 2 + (upper + lower) / 2;
-			sum += gaussQuad8[i][0] * function.apply(input);
+			sum += gaussQuad8[i][0] * function.applyAsDouble(input);
 		}
 		return sum * (upper - lower) / 2;
 	}
 
+	/**
+	 * Integrates function with the adaptive 15 point Gauss-Kronrod rule. Each
+	 * interval is integrated with both the 15 point Kronrod rule and the 7 point
+	 * Gauss rule that shares its nodes, and the difference is used as the error.
+	 * Intervals whose error is over their share of the tolerance get halved, so
+	 * smooth functions only cost 15 evaluations while hard ones get as many as
+	 * they need.
+	 * 
+	 * @param function
+	 *            function to integrate
+	 * @param lower
+	 *            lower limit of integration
+	 * @param upper
+	 *            upper limit of integration
+	 * @param tolerance
+	 *            largest allowed absolute error of the result
+	 * @return the approximate integral
+	 */
+	public static double gaussKronrodIntegrate(DoubleUnaryOperator function, double lower, double upper,
+			double tolerance) {
+		if (upper - lower == 0)
+			return 0;
+		return gaussKronrod(function, lower, upper, tolerance, 0);
+	}
+
+	private static double gaussKronrod(DoubleUnaryOperator function, double lower, double upper, double tolerance,
+			int depth) {
+		Instrumentation.count(Counter.QUADRATURE_EVALUATIONS, 15);
+		double center = (upper + lower) / 2;
+		double halfWidth = (upper - lower) / 2;
+		double centerValue = function.applyAsDouble(center);
+		double kronrod = kronrodWeights[7] * centerValue;
+		double gauss = gauss7Weights[3] * centerValue;
+		for (int i = 0; i < 7; i++) {
+			double offset = halfWidth * kronrodNodes[i];
+			double sum = function.applyAsDouble(center - offset) + function.applyAsDouble(center + offset);
+			kronrod += kronrodWeights[i] * sum;
+			if (i % 2 == 1) {
+				gauss += gauss7Weights[i / 2] * sum;
+			}
+		}
+		kronrod *= halfWidth;
+		gauss *= halfWidth;
+		if (Math.abs(kronrod - gauss) <= tolerance || depth >= GAUSS_KRONROD_MAX_DEPTH) {
+			return kronrod;
+		}
+		return gaussKronrod(function, lower, center, tolerance / 2, depth + 1)
+				+ gaussKronrod(function, center, upper, tolerance / 2, depth + 1);
+	}
+
 	public static double limit(double d, double min, double max) {
 		return d < min ? min : d > max ? max : d;
 	}
@@ -1,12 +1,14 @@
 package motion;
 
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Stage;
 import motion.MotionProfileGoal.CompletionBehavior;
 
 public class GenerateMotionProfile {
 
 	protected static MotionProfile generateFlippedStraightProfile(MotionProfileConstraints constraints,
 			MotionProfileGoal goal_state, MotionState prev_state) {
-		MotionProfile profile = generateStraightMotionProfile(constraints, goal_state.flipped(), prev_state.flipped());
+		MotionProfile profile = straightMotionProfile(constraints, goal_state.flipped(), prev_state.flipped());
 		for (MotionSegment s : profile.segments()) {
 			s.setStart(s.start().flipped());
 			s.setEnd(s.end().flipped());
@@ -16,6 +18,18 @@ public class GenerateMotionProfile {
 
 	public static MotionProfile generateStraightMotionProfile(MotionProfileConstraints constraints,
 			MotionProfileGoal goal_state, MotionState prev_state) {
+		long start = Instrumentation.start(Stage.PROFILING);
+		MotionProfile profile = null;
+		try {
+			profile = straightMotionProfile(constraints, goal_state, prev_state);
+			return profile;
+		} finally {
+			Instrumentation.finish(Stage.PROFILING, start, profile == null ? 0 : profile.size(), 0, 0);
+		}
+	}
+
+	private static MotionProfile straightMotionProfile(MotionProfileConstraints constraints,
+			MotionProfileGoal goal_state, MotionState prev_state) {
 		double delta_pos = goal_state.pos() - prev_state.pos();
 
 		if (delta_pos < 0.0 || (delta_pos == 0.0 && prev_state.vel() < 0.0)) {
@@ -12,6 +12,14 @@ import java.util.Optional;
  */
 public class MotionProfile {
 	protected List<MotionSegment> mSegments;
+	/**
+	 * End time of each segment, in order, so segments can be found by time with a
+	 * binary search. Built lazily and dropped whenever the segments change.
+	 * Volatile because it gets built the first time a profile is read, which can
+	 * be on any thread reading a shared profile, and the others must never see the
+	 * array before its entries.
+	 */
+	protected volatile double[] mEndTimes = null;
 
 	/**
 	 * Create an empty MotionProfile.
@@ -81,10 +89,9 @@ public class MotionProfile {
 		if (t > endTime() && t - MotionUtil.kEpsilon <= endTime()) {
 			return Optional.of(endState());
 		}
-		for (MotionSegment s : mSegments) {
-			if (s.containsTime(t)) {
-				return Optional.of(s.start().extrapolate(t));
-			}
+		int i = segmentIndexByTime(t);
+		if (i >= 0) {
+			return Optional.of(mSegments.get(i).start().extrapolate(t));
 		}
 		return Optional.of(endState());
 	}
@@ -104,10 +111,9 @@ public class MotionProfile {
 		} else if (t > endTime()) {
 			return endState();
 		}
-		for (MotionSegment s : mSegments) {
-			if (s.containsTime(t)) {
-				return s.start().extrapolate(t);
-			}
+		int i = segmentIndexByTime(t);
+		if (i >= 0) {
+			return mSegments.get(i).start().extrapolate(t);
 		}
 		// Should never get here.
 		return MotionState.kInvalidState;
@@ -119,15 +125,84 @@ public class MotionProfile {
 		} else if (t > endTime()) {
 			return endState().vel;
 		}
-		for (MotionSegment s : mSegments) {
-			if (s.containsTime(t)) {
-				return s.getVelocityAtTime(t);
-			}
+		int i = segmentIndexByTime(t);
+		if (i >= 0) {
+			return mSegments.get(i).getVelocityAtTime(t);
 		}
 		// Should never get here.
 		return Double.NaN;
 	}
 
+	/**
+	 * Finds the first segment containing a time (see
+	 * {@link MotionSegment#containsTime(double)}) with a binary search over the
+	 * segment end times. Gives the same segment as checking every segment in order,
+	 * including at a time shared by two segments, where both pick the earlier one.
+	 * 
+	 * @param t
+	 *            The time to query.
+	 * @return The index of the first segment that contains t, or -1 if none do.
+	 */
+	protected int segmentIndexByTime(double t) {
+		double[] end_times = timeIndex();
+		if (end_times == null) {
+			for (int i = 0; i < mSegments.size(); i++) {
+				if (mSegments.get(i).containsTime(t)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		int low = 0;
+		int high = end_times.length - 1;
+		if (high < 0 || end_times[high] < t) {
+			return -1;
+		}
+		// First segment that ends at or after t. Segments are in time order, so no
+		// earlier segment can contain t, and if this one doesn't, no later one does.
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (end_times[mid] >= t) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return mSegments.get(low).containsTime(t) ? low : -1;
+	}
+
+	/**
+	 * @return The segment end times, or null if the segments aren't in time order
+	 *         (only possible for profiles made from a list of segments), since then
+	 *         only checking every segment finds the first one containing a time.
+	 */
+	private double[] timeIndex() {
+		double[] end_times = mEndTimes;
+		if (end_times == null || end_times.length != mSegments.size()) {
+			end_times = new double[mSegments.size()];
+			double last_start = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < end_times.length; i++) {
+				MotionSegment s = mSegments.get(i);
+				end_times[i] = s.end().t();
+				if (s.start().t() < last_start || (i > 0 && end_times[i] < end_times[i - 1])) {
+					return null;
+				}
+				last_start = s.start().t();
+			}
+			mEndTimes = end_times;
+		}
+		return end_times;
+	}
+
+	/**
+	 * Drops the index used to look segments up by time. The profile's own methods
+	 * do this whenever they change it; call it after changing segment times
+	 * directly through {@link #segments()}.
+	 */
+	public void invalidateTimeIndex() {
+		mEndTimes = null;
+	}
+
 	/**
 	 * Get the interpolated MotionState by distance (the "pos()" field of
 	 * MotionState). Note that since a profile may reverse, this method only returns
@@ -177,6 +252,7 @@ public class MotionProfile {
 			}
 			break;
 		}
+		invalidateTimeIndex();
 	}
 
 	/**
@@ -184,6 +260,7 @@ public class MotionProfile {
 	 */
 	public void clear() {
 		mSegments.clear();
+		invalidateTimeIndex();
 	}
 
 	/**
@@ -209,6 +286,7 @@ public class MotionProfile {
 				iterator.remove();
 			}
 		}
+		invalidateTimeIndex();
 	}
 
 	/**
@@ -239,6 +317,7 @@ public class MotionProfile {
 	 */
 	public void appendSegment(MotionSegment segment) {
 		mSegments.add(segment);
+		invalidateTimeIndex();
 	}
 
 	/**
@@ -262,7 +341,9 @@ public class MotionProfile {
 	}
 
 	/**
-	 * @return The list of segments.
+	 * @return The list of segments. Adding or removing segments through it is
+	 *         picked up automatically, but see {@link #invalidateTimeIndex()} if
+	 *         segment times get changed.
 	 */
 	public List<MotionSegment> segments() {
 		return mSegments;
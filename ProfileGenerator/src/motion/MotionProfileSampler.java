@@ -0,0 +1,149 @@
+package motion;
+
+import java.util.List;
+
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Counter;
+
+/**
+ * Samples a MotionProfile at increasing times. The sampler remembers which
+ * segment the last sample was in and only walks forward from there, so
+ * sampling a whole profile in order costs amortized constant time per sample.
+ * Results are kept in the sampler itself instead of in new MotionStates, so
+ * sampling doesn't allocate anything.
+ *
+ * Samples are clamped to the ends of the profile, the same as
+ * {@link MotionProfile#stateByTimeClamped(double)}. Sampling an earlier time
+ * than the last sample still works, it just falls back to a binary search.
+ */
+public class MotionProfileSampler {
+	protected final MotionProfile mProfile;
+	protected int mIndex = 0;
+	protected double mT = Double.NaN;
+	protected double mPos = Double.NaN;
+	protected double mVel = Double.NaN;
+	protected double mAcc = Double.NaN;
+
+	public MotionProfileSampler(MotionProfile profile) {
+		mProfile = profile;
+	}
+
+	/**
+	 * Go back to the start of the profile.
+	 */
+	public void reset() {
+		mIndex = 0;
+	}
+
+	/**
+	 * Move to the given time. The resulting state is read with {@link #t()},
+	 * {@link #pos()}, {@link #vel()} and {@link #acc()}.
+	 *
+	 * @param t
+	 *            The time to sample.
+	 * @return False if the profile is empty or t had to be clamped to one of its
+	 *         ends, true otherwise.
+	 */
+	public boolean sample(double t) {
+		List<MotionSegment> segments = mProfile.segments();
+		if (segments.isEmpty()) {
+			set(MotionState.kInvalidState, t);
+			return false;
+		}
+		if (t < mProfile.startTime()) {
+			Instrumentation.count(Counter.CLAMPED_SAMPLES);
+			set(mProfile.startState(), mProfile.startTime());
+			return false;
+		} else if (t > mProfile.endTime()) {
+			Instrumentation.count(Counter.CLAMPED_SAMPLES);
+			set(mProfile.endState(), mProfile.endTime());
+			return false;
+		}
+		if (mIndex >= segments.size() || (mIndex > 0 && segments.get(mIndex - 1).end().t() >= t)) {
+			// Went backwards (or the profile shrank), so the cursor can't be used.
+			mIndex = Math.max(0, mProfile.segmentIndexByTime(t));
+		}
+		while (mIndex < segments.size() - 1 && segments.get(mIndex).end().t() < t) {
+			mIndex++;
+		}
+		MotionSegment segment = segments.get(mIndex);
+		if (!segment.containsTime(t)) {
+			// Should never get here.
+			set(MotionState.kInvalidState, t);
+			return true;
+		}
+		// Same as segment.start().extrapolate(t)
+		MotionState start = segment.start();
+		final double dt = t - start.t();
+		mT = t;
+		mPos = start.pos() + start.vel() * dt + .5 * start.acc() * dt * dt;
+		mVel = start.vel() + start.acc() * dt;
+		mAcc = start.acc();
+		return true;
+	}
+
+	/**
+	 * Sample the profile at evenly spaced times, writing the results into arrays.
+	 * Any of the arrays may be null to skip that value.
+	 *
+	 * @param start_t
+	 *            Time of the first sample.
+	 * @param dt
+	 *            Time between samples.
+	 * @param count
+	 *            Number of samples.
+	 * @return The number of samples that had to be clamped to the ends of the
+	 *         profile.
+	 */
+	public int sample(double start_t, double dt, int count, double[] pos, double[] vel, double[] acc) {
+		int clamped = 0;
+		for (int i = 0; i < count; i++) {
+			if (!sample(start_t + i * dt)) {
+				clamped++;
+			}
+			if (pos != null) {
+				pos[i] = mPos;
+			}
+			if (vel != null) {
+				vel[i] = mVel;
+			}
+			if (acc != null) {
+				acc[i] = mAcc;
+			}
+		}
+		return clamped;
+	}
+
+	private void set(MotionState state, double t) {
+		mT = t;
+		mPos = state.pos();
+		mVel = state.vel();
+		mAcc = state.acc();
+	}
+
+	/**
+	 * @return The time of the last sample, after clamping.
+	 */
+	public double t() {
+		return mT;
+	}
+
+	public double pos() {
+		return mPos;
+	}
+
+	public double vel() {
+		return mVel;
+	}
+
+	public double acc() {
+		return mAcc;
+	}
+
+	/**
+	 * @return The last sample as a new MotionState.
+	 */
+	public MotionState state() {
+		return new MotionState(mT, mPos, mVel, mAcc);
+	}
+}
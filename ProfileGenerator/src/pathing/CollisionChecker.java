@@ -0,0 +1,359 @@
+package pathing;
+
+import java.awt.geom.Rectangle2D;
+
+import math.BezierCurve;
+import math.Curve;
+import math.LineSegment;
+
+/**
+ * Checks that a robot following a path stays clear of obstacles and inside the
+ * field, and finds the first arc length where it doesn't.
+ *
+ * The robot is a rectangle centered on the path and pointed along it. Each
+ * curve is split with de Casteljau's algorithm, but only where it could be
+ * close to something: a piece is skipped as soon as the bounding box of its
+ * control points, grown by the robot's half diagonal, misses every obstacle.
+ * Pieces that can't be skipped get split until they're nearly straight, and
+ * then the box swept by the robot along the piece is tested exactly. So a path
+ * that stays well away from everything costs a few box tests per segment.
+ *
+ * The robot's box gets grown slightly to cover the piece's curve and turn, so
+ * instead of treating that as a collision, obstacles get shrunk (and the bounds
+ * grown) by the tolerance. Overlaps that aren't deeper than the tolerance are
+ * never reported, so paths planned flush against a wall or obstacle pass, and
+ * overlaps deeper than about 1.5 tolerances (the tolerance measured across a
+ * corner) always are.
+ */
+public class CollisionChecker {
+
+	/**
+	 * Default tolerance, in inches
+	 */
+	public static final double DEFAULT_TOLERANCE = 0.25;
+	/**
+	 * Most times a curve gets split in half
+	 */
+	private static final int MAX_SPLIT_DEPTH = 20;
+
+	/**
+	 * The first place a path runs into something
+	 */
+	public static class Collision {
+		/**
+		 * index of the segment the collision is on
+		 */
+		public final int segment;
+		/**
+		 * arc length along the whole path, within about the tolerance of where the
+		 * robot first overlaps something
+		 */
+		public final double arcLength;
+		/**
+		 * where the center of the robot is
+		 */
+		public final double x;
+		public final double y;
+		/**
+		 * what the robot runs into, or null if it leaves the bounds
+		 */
+		public final Rectangle2D obstacle;
+
+		public Collision(int segment, double arcLength, double x, double y, Rectangle2D obstacle) {
+			this.segment = segment;
+			this.arcLength = arcLength;
+			this.x = x;
+			this.y = y;
+			this.obstacle = obstacle;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s at arc length %f (%f, %f), segment %d",
+					obstacle == null ? "out of bounds" : "hits " + obstacle, arcLength, x, y, segment);
+		}
+	}
+
+	private final double halfLength;
+	private final double halfWidth;
+	private final double radius;
+	private final double tolerance;
+	private final Rectangle2D bounds;
+	private final Rectangle2D[] obstacles;
+
+	/**
+	 * Uses {@link #DEFAULT_TOLERANCE}
+	 */
+	public CollisionChecker(double robotLength, double robotWidth, Rectangle2D bounds, Rectangle2D... obstacles) {
+		this(robotLength, robotWidth, DEFAULT_TOLERANCE, bounds, obstacles);
+	}
+
+	/**
+	 * @param robotLength
+	 *            length of the robot along its heading, including bumpers
+	 * @param robotWidth
+	 *            width of the robot, including bumpers
+	 * @param tolerance
+	 *            how far, in inches, the robot can overlap something without it
+	 *            counting, see above. Smaller splits curves further
+	 * @param bounds
+	 *            area the robot has to stay inside, or null for anywhere
+	 * @param obstacles
+	 *            areas the robot can't touch
+	 */
+	public CollisionChecker(double robotLength, double robotWidth, double tolerance, Rectangle2D bounds,
+			Rectangle2D... obstacles) {
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("tolerance must be positive: " + tolerance);
+		this.halfLength = robotLength / 2;
+		this.halfWidth = robotWidth / 2;
+		this.radius = Math.sqrt(halfLength * halfLength + halfWidth * halfWidth);
+		this.tolerance = tolerance;
+		this.bounds = bounds == null ? null
+				: new Rectangle2D.Double(bounds.getX() - tolerance, bounds.getY() - tolerance,
+						bounds.getWidth() + 2 * tolerance, bounds.getHeight() + 2 * tolerance);
+		this.obstacles = obstacles.clone();
+	}
+
+	/**
+	 * @return true if the robot never runs into anything along path
+	 */
+	public boolean isClear(Path path) {
+		return check(path) == null;
+	}
+
+	/**
+	 * @return the first collision along path, or null if there isn't one
+	 */
+	public Collision check(Path path) {
+		double segmentStart = 0;
+		PathSegment[] segments = path.getSegments();
+		for (int i = 0; i < segments.length; i++) {
+			Curve curve = segments[i].curve;
+			double[] x;
+			double[] y;
+			if (curve instanceof BezierCurve) {
+				x = ((BezierCurve) curve).controlPointsX;
+				y = ((BezierCurve) curve).controlPointsY;
+			} else if (curve instanceof LineSegment) {
+				LineSegment line = (LineSegment) curve;
+				x = new double[] { line.start.x, line.end.x };
+				y = new double[] { line.start.y, line.end.y };
+			} else {
+				throw new IllegalArgumentException("can't check " + curve.getClass().getSimpleName());
+			}
+
+			// earliest collision on this segment with anything
+			double firstT = Double.POSITIVE_INFINITY;
+			Rectangle2D firstObstacle = null;
+			if (bounds != null) {
+				firstT = firstOutOfBounds(x.clone(), y.clone(), 0, 1, 0);
+			}
+			for (Rectangle2D obstacle : obstacles) {
+				Rectangle2D shrunk = new Rectangle2D.Double(obstacle.getX() + tolerance, obstacle.getY() + tolerance,
+						obstacle.getWidth() - 2 * tolerance, obstacle.getHeight() - 2 * tolerance);
+				if (shrunk.isEmpty())
+					continue;
+				double t = firstHit(x.clone(), y.clone(), 0, 1, 0, shrunk);
+				if (t < firstT) {
+					firstT = t;
+					firstObstacle = obstacle;
+				}
+			}
+			if (firstT != Double.POSITIVE_INFINITY) {
+				double arcLength;
+				double cx, cy;
+				if (curve instanceof BezierCurve) {
+					BezierCurve bezier = (BezierCurve) curve;
+					arcLength = bezier.getArcLength(firstT);
+					cx = bezier.getX(firstT);
+					cy = bezier.getY(firstT);
+				} else {
+					arcLength = firstT * curve.getTotalArcLength();
+					cx = x[0] + firstT * (x[1] - x[0]);
+					cy = y[0] + firstT * (y[1] - y[0]);
+				}
+				return new Collision(i, segmentStart + arcLength, cx, cy, firstObstacle);
+			}
+			segmentStart += curve.getTotalArcLength();
+		}
+		return null;
+	}
+
+	/**
+	 * @return start of the first piece of the curve from t0 to t1 where the robot
+	 *         overlaps obstacle, or infinity if it never does
+	 */
+	private double firstHit(double[] x, double[] y, double t0, double t1, int depth, Rectangle2D obstacle) {
+		double[] box = hullBox(x, y, radius);
+		if (!obstacle.intersects(box[0], box[1], box[2] - box[0], box[3] - box[1]))
+			return Double.POSITIVE_INFINITY;
+		double[] swept = sweptBox(x, y, depth >= MAX_SPLIT_DEPTH);
+		if (swept != null) {
+			if (!overlaps(swept, obstacle))
+				return Double.POSITIVE_INFINITY;
+			if (isShort(x, y) || depth >= MAX_SPLIT_DEPTH)
+				return t0;
+		}
+		double[] firstX = new double[x.length];
+		double[] firstY = new double[y.length];
+		BezierCurve.splitInHalf(x, y, firstX, firstY);
+		double mid = (t0 + t1) / 2;
+		double first = firstHit(firstX, firstY, t0, mid, depth + 1, obstacle);
+		return first != Double.POSITIVE_INFINITY ? first : firstHit(x, y, mid, t1, depth + 1, obstacle);
+	}
+
+	/**
+	 * @return start of the first piece of the curve from t0 to t1 where the robot
+	 *         leaves the bounds, or infinity if it never does
+	 */
+	private double firstOutOfBounds(double[] x, double[] y, double t0, double t1, int depth) {
+		double[] box = hullBox(x, y, radius);
+		if (bounds.contains(box[0], box[1], box[2] - box[0], box[3] - box[1]))
+			return Double.POSITIVE_INFINITY;
+		double[] swept = sweptBox(x, y, depth >= MAX_SPLIT_DEPTH);
+		if (swept != null) {
+			if (inside(swept, bounds))
+				return Double.POSITIVE_INFINITY;
+			if (isShort(x, y) || depth >= MAX_SPLIT_DEPTH)
+				return t0;
+		}
+		double[] firstX = new double[x.length];
+		double[] firstY = new double[y.length];
+		BezierCurve.splitInHalf(x, y, firstX, firstY);
+		double mid = (t0 + t1) / 2;
+		double first = firstOutOfBounds(firstX, firstY, t0, mid, depth + 1);
+		return first != Double.POSITIVE_INFINITY ? first : firstOutOfBounds(x, y, mid, t1, depth + 1);
+	}
+
+	/**
+	 * @return {minX, minY, maxX, maxY} of the control points, grown by margin
+	 */
+	private static double[] hullBox(double[] x, double[] y, double margin) {
+		double[] box = { x[0], y[0], x[0], y[0] };
+		for (int i = 1; i < x.length; i++) {
+			box[0] = Math.min(box[0], x[i]);
+			box[1] = Math.min(box[1], y[i]);
+			box[2] = Math.max(box[2], x[i]);
+			box[3] = Math.max(box[3], y[i]);
+		}
+		box[0] -= margin;
+		box[1] -= margin;
+		box[2] += margin;
+		box[3] += margin;
+		return box;
+	}
+
+	/**
+	 * @return if the piece is short enough that where it starts is an accurate
+	 *         enough place for a collision on it
+	 */
+	private boolean isShort(double[] x, double[] y) {
+		int n = x.length - 1;
+		double dx = x[n] - x[0], dy = y[n] - y[0];
+		return dx * dx + dy * dy <= tolerance * tolerance;
+	}
+
+	/**
+	 * Finds a box, lined up with the line between the piece's ends, that holds
+	 * the robot everywhere along the piece. The robot's center is somewhere in
+	 * the control points' hull, and the robot is turned from the line by no more
+	 * than the furthest any control polygon edge is turned from it, so the box
+	 * is the hull's extent along and across the line, plus the extent of the
+	 * robot turned by that much.
+	 *
+	 * @param force
+	 *            make the box even if it would be bigger than the tolerance allows
+	 * @return {center x, center y, axis x, axis y, half length, half width}, or
+	 *         null if the piece needs to be split further first
+	 */
+	private double[] sweptBox(double[] x, double[] y, boolean force) {
+		int n = x.length - 1;
+		double ux = x[n] - x[0], uy = y[n] - y[0];
+		double length = Math.sqrt(ux * ux + uy * uy);
+		if (length == 0) {
+			if (!force)
+				return null;
+			ux = 1;
+			uy = 0;
+		} else {
+			ux /= length;
+			uy /= length;
+		}
+
+		double alongMin = 0, alongMax = 0, acrossMin = 0, acrossMax = 0, turn = 0;
+		for (int i = 1; i <= n; i++) {
+			double ox = x[i] - x[0], oy = y[i] - y[0];
+			double along = ox * ux + oy * uy;
+			double across = oy * ux - ox * uy;
+			alongMin = Math.min(alongMin, along);
+			alongMax = Math.max(alongMax, along);
+			acrossMin = Math.min(acrossMin, across);
+			acrossMax = Math.max(acrossMax, across);
+			double ex = x[i] - x[i - 1], ey = y[i] - y[i - 1];
+			if (ex != 0 || ey != 0) {
+				turn = Math.max(turn, Math.atan2(Math.abs(ex * uy - ey * ux), ex * ux + ey * uy));
+			}
+		}
+		double halfAlong = turnedExtent(halfLength, halfWidth, turn);
+		double halfAcross = turnedExtent(halfWidth, halfLength, turn);
+		// most the box can stick out past the area the robot really sweeps
+		double slack = Math.max(acrossMax - acrossMin, alongMax - alongMin - length) + (halfAlong - halfLength)
+				+ (halfAcross - halfWidth);
+		if (!force && slack > tolerance)
+			return null;
+
+		double centerAlong = (alongMin + alongMax) / 2;
+		double centerAcross = (acrossMin + acrossMax) / 2;
+		return new double[] { x[0] + centerAlong * ux - centerAcross * uy, y[0] + centerAlong * uy + centerAcross * ux,
+				ux, uy, (alongMax - alongMin) / 2 + halfAlong, (acrossMax - acrossMin) / 2 + halfAcross };
+	}
+
+	/**
+	 * @param half
+	 *            half a rectangle's size along one of its axes
+	 * @param otherHalf
+	 *            half its size along the other axis
+	 * @return furthest the rectangle reaches along the first axis when turned by
+	 *         up to turn either way
+	 */
+	private static double turnedExtent(double half, double otherHalf, double turn) {
+		// half * cos + otherHalf * sin peaks at the corner's angle
+		if (turn >= Math.atan2(otherHalf, half))
+			return Math.sqrt(half * half + otherHalf * otherHalf);
+		return half * Math.cos(turn) + otherHalf * Math.sin(turn);
+	}
+
+	/**
+	 * Separating axis test between a box from {@link #sweptBox} and a rectangle.
+	 * Touching doesn't count
+	 */
+	private static boolean overlaps(double[] box, Rectangle2D rectangle) {
+		double cx = box[0], cy = box[1], ux = box[2], uy = box[3], hu = box[4], hv = box[5];
+		double rx = rectangle.getWidth() / 2, ry = rectangle.getHeight() / 2;
+		double dx = rectangle.getCenterX() - cx, dy = rectangle.getCenterY() - cy;
+		// the rectangle's axes
+		if (Math.abs(dx) >= rx + hu * Math.abs(ux) + hv * Math.abs(uy))
+			return false;
+		if (Math.abs(dy) >= ry + hu * Math.abs(uy) + hv * Math.abs(ux))
+			return false;
+		// the box's axes
+		if (Math.abs(dx * ux + dy * uy) >= hu + rx * Math.abs(ux) + ry * Math.abs(uy))
+			return false;
+		if (Math.abs(dy * ux - dx * uy) >= hv + rx * Math.abs(uy) + ry * Math.abs(ux))
+			return false;
+		return true;
+	}
+
+	/**
+	 * @return if every corner of a box from {@link #sweptBox} is in rectangle
+	 */
+	private static boolean inside(double[] box, Rectangle2D rectangle) {
+		double cx = box[0], cy = box[1], ux = box[2], uy = box[3], hu = box[4], hv = box[5];
+		double extentX = hu * Math.abs(ux) + hv * Math.abs(uy);
+		double extentY = hu * Math.abs(uy) + hv * Math.abs(ux);
+		return cx - extentX >= rectangle.getMinX() && cx + extentX <= rectangle.getMaxX()
+				&& cy - extentY >= rectangle.getMinY() && cy + extentY <= rectangle.getMaxY();
+	}
+
+}
@@ -0,0 +1,152 @@
+package pathing;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import pathing.Path.TrajectoryHolder;
+
+/**
+ * Same data as a {@link TrajectoryHolder}, but stored as one array per value
+ * per side instead of one object per point. A long trajectory is then a
+ * handful of arrays instead of thousands of small objects, and loops over one
+ * value (like the voltage check in
+ * {@link Path#isPossible(ColumnarTrajectory, double, double, double, double, double, double)})
+ * read memory in order.
+ */
+public class ColumnarTrajectory {
+
+	public final Side left;
+	public final Side right;
+
+	public ColumnarTrajectory(Side left, Side right) {
+		this.left = left;
+		this.right = right;
+	}
+
+	/**
+	 * Copies the points of a TrajectoryHolder into columns. Assumes every point
+	 * has the same duration as the first one.
+	 */
+	public static ColumnarTrajectory of(TrajectoryHolder holder) {
+		return new ColumnarTrajectory(Side.of(holder.left), Side.of(holder.right));
+	}
+
+	public int length() {
+		return left.length();
+	}
+
+	/**
+	 * @return a TrajectoryHolder with the same points, for code that still uses
+	 *         TrajectoryPoints
+	 */
+	public TrajectoryHolder toTrajectoryHolder() {
+		return new TrajectoryHolder(left.toPoints(), right.toPoints());
+	}
+
+	/**
+	 * One side of the drivetrain. Index i of every array belongs to the same
+	 * point.
+	 */
+	public static class Side {
+		public final double[] x;
+		public final double[] y;
+		public final double[] position;
+		public final double[] velocity;
+		public final double[] acceleration;
+		/**
+		 * duration of every point
+		 */
+		public final double duration;
+
+		public Side(double[] x, double[] y, double[] position, double[] velocity, double[] acceleration,
+				double duration) {
+			this.x = x;
+			this.y = y;
+			this.position = position;
+			this.velocity = velocity;
+			this.acceleration = acceleration;
+			this.duration = duration;
+		}
+
+		/**
+		 * Makes a side with room for length points
+		 */
+		public Side(int length, double duration) {
+			this(new double[length], new double[length], new double[length], new double[length],
+					new double[length], duration);
+		}
+
+		static Side of(TrajectoryPoint[] points) {
+			Side side = new Side(points.length, points.length == 0 ? 0 : points[0].duration);
+			for (int i = 0; i < points.length; i++) {
+				side.x[i] = points[i].x;
+				side.y[i] = points[i].y;
+				side.position[i] = points[i].position;
+				side.velocity[i] = points[i].velocity;
+				side.acceleration[i] = points[i].acceleration;
+			}
+			return side;
+		}
+
+		public int length() {
+			return position.length;
+		}
+
+		public double x(int i) {
+			return x[i];
+		}
+
+		public double y(int i) {
+			return y[i];
+		}
+
+		public double position(int i) {
+			return position[i];
+		}
+
+		public double velocity(int i) {
+			return velocity[i];
+		}
+
+		public double acceleration(int i) {
+			return acceleration[i];
+		}
+
+		/**
+		 * @return a new TrajectoryPoint with the values at index i
+		 */
+		public TrajectoryPoint get(int i) {
+			return new TrajectoryPoint(x[i], y[i], position[i], velocity[i], acceleration[i], duration);
+		}
+
+		/**
+		 * @return a read-only list view of this side. Points are made as they are
+		 *         read, nothing is copied up front
+		 */
+		public List<TrajectoryPoint> asList() {
+			return new PointList();
+		}
+
+		public TrajectoryPoint[] toPoints() {
+			TrajectoryPoint[] points = new TrajectoryPoint[length()];
+			for (int i = 0; i < points.length; i++) {
+				points[i] = get(i);
+			}
+			return points;
+		}
+
+		private class PointList extends AbstractList<TrajectoryPoint> implements RandomAccess {
+			@Override
+			public TrajectoryPoint get(int index) {
+				return Side.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return length();
+			}
+		}
+	}
+
+}
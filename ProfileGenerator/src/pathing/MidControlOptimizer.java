@@ -0,0 +1,407 @@
+package pathing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import math.BezierCurve;
+import math.Timer;
+import motion.MotionProfileConstraints;
+
+/**
+ * Picks the mid control percent of every segment of a path (see
+ * {@link Path#addWaypoint(Waypoint, double)}) so that the path is as fast or as
+ * gently curved as it can be while keeping clear of the field.
+ *
+ * Where a segment starts and ends doesn't depend on its mid control percent, so
+ * each segment is searched on its own, all at once on a fork-join pool. Every
+ * candidate is scored without building a table or a profile: its arc length is
+ * integrated directly, its duration comes from the same formulas the profile
+ * generator uses, and its curvature and clearance are sampled from the curve.
+ * Only the segments that end up changing are remade in the path, so generating
+ * the profile afterwards only redoes the path from the first of them onwards.
+ *
+ * <pre>
+ * MidControlOptimizer optimizer = new MidControlOptimizer(Objective.DURATION, constraints,
+ * 		Field.signedDistanceField(), robotWidth / 2);
+ * Result result = optimizer.optimize(path);
+ * </pre>
+ */
+public class MidControlOptimizer {
+
+	public enum Objective {
+		/**
+		 * shortest profile
+		 */
+		DURATION,
+		/**
+		 * smallest largest curvature, so the inside wheel slows down the least
+		 */
+		PEAK_CURVATURE
+	}
+
+	/**
+	 * Smallest mid control percent tried. At 0 the curve's first control points
+	 * coincide and its curvature blows up at the ends
+	 */
+	public static final double MIN_MID_CONTROL_PERCENT = 0.1;
+	public static final double MAX_MID_CONTROL_PERCENT = 0.9;
+	/**
+	 * Evenly spaced mid control percents tried before refining the best one, so
+	 * the search doesn't get stuck on a curve with more than one dip
+	 */
+	public static final int GRID_POINTS = 9;
+	/**
+	 * Mid control percents closer than this are treated as the same
+	 */
+	public static final double SEARCH_TOLERANCE = 1.0e-3;
+	/**
+	 * Points sampled along a candidate for its peak curvature, and the fewest
+	 * sampled for its clearance
+	 */
+	public static final int CURVE_SAMPLES = 64;
+
+	private static final double GOLDEN_RATIO = (Math.sqrt(5) - 1) / 2;
+
+	private final Objective objective;
+	private final MotionProfileConstraints constraints;
+	private final SignedDistanceField field;
+	private final double minClearance;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Makes an optimizer that doesn't look at clearance
+	 */
+	public MidControlOptimizer(Objective objective, MotionProfileConstraints constraints) {
+		this(objective, constraints, null, 0);
+	}
+
+	/**
+	 * Makes an optimizer that runs on the common fork-join pool
+	 */
+	public MidControlOptimizer(Objective objective, MotionProfileConstraints constraints, SignedDistanceField field,
+			double minClearance) {
+		this(objective, constraints, field, minClearance, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param objective
+	 *            what to minimize
+	 * @param constraints
+	 *            max velocity and acceleration of the profile
+	 * @param field
+	 *            distance to the field's obstacles, or null to not look at
+	 *            clearance
+	 * @param minClearance
+	 *            distance, in inches, the middle of the robot has to stay from
+	 *            every obstacle, so at least half the robot's width. Candidates
+	 *            closer than this only win when none of them are far enough, and
+	 *            then the one with the most clearance does
+	 * @param pool
+	 *            runs one task per segment
+	 */
+	public MidControlOptimizer(Objective objective, MotionProfileConstraints constraints, SignedDistanceField field,
+			double minClearance, ForkJoinPool pool) {
+		this.objective = objective;
+		this.constraints = constraints;
+		this.field = field;
+		this.minClearance = minClearance;
+		this.pool = pool;
+	}
+
+	/**
+	 * What an optimization changed
+	 */
+	public static class Result {
+		/**
+		 * mid control percent of each segment afterwards, NaN for segments that
+		 * aren't made from a mid control percent (straight lines and segments added
+		 * directly)
+		 */
+		public final double[] midControlPercents;
+		/**
+		 * number of segments that were remade
+		 */
+		public final int changed;
+		/**
+		 * profile duration, in seconds, before and after
+		 */
+		public final double durationBefore;
+		public final double durationAfter;
+		/**
+		 * candidates scored, over every segment
+		 */
+		public final int evaluations;
+		/**
+		 * milliseconds the whole optimization took, including generating both
+		 * profiles
+		 */
+		public final double optimizeMs;
+
+		private Result(double[] midControlPercents, int changed, double durationBefore, double durationAfter,
+				int evaluations, double optimizeMs) {
+			this.midControlPercents = midControlPercents;
+			this.changed = changed;
+			this.durationBefore = durationBefore;
+			this.durationAfter = durationAfter;
+			this.evaluations = evaluations;
+			this.optimizeMs = optimizeMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d segments changed, %.3f s -> %.3f s, %d evaluations in %.3f ms %s", changed,
+					durationBefore, durationAfter, evaluations, optimizeMs, Arrays.toString(midControlPercents));
+		}
+	}
+
+	/**
+	 * Searches every segment's mid control percent, remakes the segments where a
+	 * better one was found, and generates the path's profile with
+	 * {@link Path#generateProfile(MotionProfileConstraints)}. A segment is only
+	 * changed if its new mid control percent scores better than its old one.
+	 *
+	 * Each segment's duration is scored as if it starts at the velocity of the
+	 * waypoint before it, which is where the profile starts it unless the segment
+	 * before it is too short to get there. The profile generated at the end is
+	 * exact, so {@link Result#durationAfter} is the real duration.
+	 */
+	public Result optimize(Path path) {
+		Timer timer = new Timer();
+		path.generateProfile(constraints);
+		double durationBefore = path.getProfile().duration();
+
+		PathSegment[] segments = path.getSegments();
+		double[] percents = new double[segments.length];
+		Arrays.fill(percents, Double.NaN);
+		List<Callable<Search>> searches = new ArrayList<>();
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i].curve instanceof BezierCurve && path.hasMidControlPercent(i)) {
+				// the profile only moves forwards, and starts at rest
+				double startVel = i == 0 ? 0 : Math.abs(segments[i - 1].end.vel);
+				searches.add(new Search(i, segments[i], path.getMidControlPercent(i + 1), startVel));
+			}
+		}
+
+		int changed = 0;
+		int evaluations = 0;
+		for (Future<Search> future : pool.invokeAll(searches)) {
+			Search search = join(future);
+			percents[search.index] = search.best;
+			evaluations += search.evaluations;
+			if (search.best != search.current) {
+				path.setMidControlPercent(search.index + 1, search.best);
+				changed++;
+			}
+		}
+		path.generateProfile(constraints);
+		return new Result(percents, changed, durationBefore, path.getProfile().duration(), evaluations,
+				timer.elapsed());
+	}
+
+	private static Search join(Future<Search> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while optimizing", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Score of one candidate. Lower is better
+	 */
+	private static final class Score {
+		final double value;
+		final double clearance;
+
+		Score(double value, double clearance) {
+			this.value = value;
+			this.clearance = clearance;
+		}
+	}
+
+	/**
+	 * Searches one segment. Only reads the segment it was given, so any number can
+	 * run at once
+	 */
+	private final class Search implements Callable<Search> {
+		final int index;
+		final Waypoint start;
+		final Waypoint end;
+		final double current;
+		final double startVel;
+		final double endVel;
+		final double[] point = new double[2];
+		double best;
+		int evaluations;
+
+		Search(int index, PathSegment segment, double current, double startVel) {
+			this.index = index;
+			this.start = segment.start;
+			this.end = segment.end;
+			this.current = current;
+			this.startVel = startVel;
+			this.endVel = Math.abs(segment.end.vel);
+		}
+
+		@Override
+		public Search call() {
+			best = current;
+			Score bestScore = score(current);
+			double step = (MAX_MID_CONTROL_PERCENT - MIN_MID_CONTROL_PERCENT) / (GRID_POINTS - 1);
+			double bestGrid = Double.NaN;
+			Score bestGridScore = null;
+			for (int i = 0; i < GRID_POINTS; i++) {
+				double n = MIN_MID_CONTROL_PERCENT + i * step;
+				Score score = score(n);
+				if (bestGridScore == null || isBetter(score, bestGridScore)) {
+					bestGrid = n;
+					bestGridScore = score;
+				}
+			}
+
+			// golden section search between the best grid point's neighbors
+			double lower = Math.max(MIN_MID_CONTROL_PERCENT, bestGrid - step);
+			double upper = Math.min(MAX_MID_CONTROL_PERCENT, bestGrid + step);
+			double c = upper - GOLDEN_RATIO * (upper - lower);
+			double d = lower + GOLDEN_RATIO * (upper - lower);
+			Score scoreC = score(c);
+			Score scoreD = score(d);
+			while (upper - lower > SEARCH_TOLERANCE) {
+				if (isBetter(scoreC, scoreD)) {
+					upper = d;
+					d = c;
+					scoreD = scoreC;
+					c = upper - GOLDEN_RATIO * (upper - lower);
+					scoreC = score(c);
+				} else {
+					lower = c;
+					c = d;
+					scoreC = scoreD;
+					d = lower + GOLDEN_RATIO * (upper - lower);
+					scoreD = score(d);
+				}
+			}
+			double refined = isBetter(scoreC, scoreD) ? c : d;
+			Score refinedScore = isBetter(scoreC, scoreD) ? scoreC : scoreD;
+			if (isBetter(bestGridScore, refinedScore)) {
+				refined = bestGrid;
+				refinedScore = bestGridScore;
+			}
+			if (isBetter(refinedScore, bestScore) && Math.abs(refined - current) > SEARCH_TOLERANCE) {
+				best = refined;
+			}
+			return this;
+		}
+
+		/**
+		 * Candidates that keep clear of the field always beat ones that don't. Of
+		 * two that don't, the one with more clearance wins
+		 */
+		private boolean isBetter(Score a, Score b) {
+			boolean aClear = a.clearance >= minClearance;
+			boolean bClear = b.clearance >= minClearance;
+			if (aClear != bClear)
+				return aClear;
+			if (!aClear)
+				return a.clearance > b.clearance;
+			return a.value < b.value;
+		}
+
+		private Score score(double midControlPercent) {
+			evaluations++;
+			PathSegment candidate;
+			try {
+				candidate = Path.connect(start, end, midControlPercent);
+			} catch (IllegalArgumentException e) {
+				return new Score(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+			}
+			BezierCurve curve = (BezierCurve) candidate.curve;
+			double length = curve.arcLengthIntegral(0, 1);
+
+			double value;
+			if (objective == Objective.DURATION) {
+				value = duration(constraints, startVel, endVel, length);
+			} else {
+				value = 0;
+				for (int i = 0; i <= CURVE_SAMPLES; i++) {
+					value = Math.max(value, Math.abs(curve.curvature((double) i / CURVE_SAMPLES)));
+				}
+			}
+
+			double clearance = Double.POSITIVE_INFINITY;
+			if (field != null) {
+				// t doesn't move along the curve evenly, so sample twice as often as
+				// once per cell to keep the gaps under a cell
+				int samples = Math.max(CURVE_SAMPLES, (int) Math.ceil(2 * length / field.getCellSize()));
+				for (int i = 0; i <= samples; i++) {
+					curve.evaluate((double) i / samples, point);
+					clearance = Math.min(clearance, field.distance(point[0], point[1]));
+				}
+			}
+			return new Score(value, clearance);
+		}
+	}
+
+	/**
+	 * Duration of the profile
+	 * {@link motion.GenerateMotionProfile#generateStraightMotionProfile} makes
+	 * over distance, without making it. Follows the same steps, including
+	 * breaking the acceleration limit when the goal velocity can't be slowed down
+	 * to in time.
+	 *
+	 * @param startVel
+	 *            absolute velocity at the start
+	 * @param goalVel
+	 *            absolute velocity at the end
+	 * @param distance
+	 *            distance to travel, at least 0
+	 * @return time it takes, in seconds
+	 */
+	static double duration(MotionProfileConstraints constraints, double startVel, double goalVel, double distance) {
+		double maxVel = constraints.max_abs_vel();
+		double maxAcc = constraints.max_abs_acc();
+		double vel = Math.min(startVel, maxVel);
+		double acc = maxAcc;
+
+		double minVelAtGoalSqr = vel * vel - 2 * maxAcc * distance;
+		// tolerances of the goal generateProfile uses
+		if (minVelAtGoalSqr > 0 && Math.sqrt(minVelAtGoalSqr) > goalVel + 1e-2) {
+			if (distance < 1e-3) {
+				return 0;
+			}
+			acc = Math.abs(goalVel * goalVel - vel * vel) / (2 * distance);
+		}
+		goalVel = Math.min(goalVel, Math.sqrt(vel * vel + 2 * maxAcc * distance));
+
+		double peakVel = Math.min(maxVel, Math.sqrt((vel * vel + goalVel * goalVel) / 2 + distance * acc));
+		double time = 0;
+		double pos = 0;
+		if (peakVel > vel) {
+			double accelTime = (peakVel - vel) / acc;
+			time += accelTime;
+			pos += (vel + peakVel) / 2 * accelTime;
+			vel = peakVel;
+		}
+		double decelDistance = Math.max(0, (vel * vel - goalVel * goalVel) / (2 * maxAcc));
+		double cruiseDistance = Math.max(0, distance - pos - decelDistance);
+		if (cruiseDistance > 0) {
+			time += cruiseDistance / vel;
+		}
+		if (decelDistance > 0) {
+			time += (vel - goalVel) / acc;
+		}
+		return time;
+	}
+
+}
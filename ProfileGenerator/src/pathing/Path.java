@@ -3,9 +3,11 @@ package pathing;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Objects;
 
+import instrumentation.Instrumentation;
+import instrumentation.Instrumentation.Counter;
+import instrumentation.Instrumentation.Stage;
 import math.BezierCurve;
 import math.Curve;
 import math.LineSegment;
@@ -16,6 +18,7 @@ import motion.MotionProfile;
 import motion.MotionProfileConstraints;
 import motion.MotionProfileGoal;
 import motion.MotionProfileGoal.CompletionBehavior;
+import motion.MotionProfileSampler;
 import motion.MotionSegment;
 import motion.MotionState;
 
@@ -33,6 +36,22 @@ public final class Path {
 
 	public final boolean driveForwards;
 	private final ArrayList<PathSegment> segments = new ArrayList<>();
+	/**
+	 * Mid control percent each segment was made with, NaN for segments that were
+	 * added directly
+	 */
+	private final ArrayList<Double> midControlPercents = new ArrayList<>();
+	/**
+	 * Profile of each segment, in order and never flipped. Only the segments
+	 * before the first one that changed have one, so generateProfile picks up
+	 * from the end of this list.
+	 */
+	private final ArrayList<MotionProfile> segmentProfiles = new ArrayList<>();
+	private MotionProfileConstraints constraints;
+	/**
+	 * State the profile starts from, null for starting at rest
+	 */
+	private MotionState initialState;
 	private Waypoint prev;
 	private MotionProfile profile;
 
@@ -60,6 +79,31 @@ public final class Path {
 
 	public void addWaypoint(Waypoint w, double midControlPercent) {
 		// System.out.println("ADDING WAYPOINT: " + w.toString());
+		Curve curve = makeCurve(prev, w, midControlPercent);
+		if (curve != null) {
+			addSegment(segments.size(), new PathSegment(prev, w, curve), midControlPercent);
+			prev = w;
+		}
+	}
+
+	/**
+	 * @return the curve connecting two waypoints, or null if there isn't a good
+	 *         one
+	 */
+	private static Curve makeCurve(Waypoint prev, Waypoint w, double midControlPercent) {
+		long start = Instrumentation.start(Stage.CURVE_CONSTRUCTION);
+		Curve curve = null;
+		try {
+			curve = pickCurve(prev, w, midControlPercent);
+			return curve;
+		} finally {
+			int degree = curve instanceof BezierCurve ? ((BezierCurve) curve).controlPoints.length - 1
+					: curve instanceof LineSegment ? 1 : 0;
+			Instrumentation.finish(Stage.CURVE_CONSTRUCTION, start, 0, degree, 0);
+		}
+	}
+
+	private static Curve pickCurve(Waypoint prev, Waypoint w, double midControlPercent) {
 		double theta1 = prev.heading.getAbsoluteAngle();
 		double theta2 = w.heading.getAbsoluteAngle();
 
@@ -79,23 +123,20 @@ public final class Path {
 		} else if ((alpha >= 0 && beta < alpha) || (alpha <= 0 && beta > alpha)) {
 			// not the same as checking if abs(beta) < abs(alpha)
 			// System.out.println("Running thing 1");
-			curve = addCase1(w, midControlPercent);
+			curve = addCase1(prev, w, midControlPercent);
 		} else if (Math.abs(beta) > Math.abs(alpha) && Math.abs(beta) <= 2 * Math.PI / 3) {
 			// System.out.println("Running thing 2");
-			curve = addCase2(w, midControlPercent);
+			curve = addCase2(prev, w, midControlPercent);
 		} else if (Math.abs(beta) > Math.abs(alpha) && Math.abs(beta) > 2 * Math.PI / 3) {
 			// System.out.println("Running thing 3");
-			curve = addCase3(w, midControlPercent);
+			curve = addCase3(prev, w, midControlPercent);
 		} else {
 			System.err.println("INVALID WAYPOINT/BAD PATH");
 		}
-		if (curve != null) {
-			segments.add(new PathSegment(prev, w, curve));
-			prev = w;
-		}
+		return curve;
 	}
 
-	private BezierCurve addCase1(Waypoint w, double n) {
+	private static BezierCurve addCase1(Waypoint prev, Waypoint w, double n) {
 		// could have middle point be along direction at n, or be parallel at n
 		// right now doing middle point along direction at n
 		Vector v1 = prev.position;
@@ -111,7 +152,7 @@ public final class Path {
 		return new BezierCurve(v1, v2, v3, v4, v5, v6, v7);
 	}
 
-	private BezierCurve addCase2(Waypoint w, double n) {
+	private static BezierCurve addCase2(Waypoint prev, Waypoint w, double n) {
 		LineSegment lineA = new LineSegment(prev);
 		LineSegment lineB = new LineSegment(w);
 		// System.out.println("Line A: " + lineA.toString());
@@ -128,7 +169,7 @@ public final class Path {
 		return new BezierCurve(v1, v2, v3, v4, v5);
 	}
 
-	private BezierCurve addCase3(Waypoint w, double n) {
+	private static BezierCurve addCase3(Waypoint prev, Waypoint w, double n) {
 		Vector v1 = prev.position;
 		Vector v7 = w.position;
 		LineSegment l17 = new LineSegment(v1, v7);
@@ -144,48 +185,334 @@ public final class Path {
 	}
 
 	public void addPathSegment(PathSegment seg) {
-		segments.add(seg);
+		addSegment(segments.size(), seg, Double.NaN);
 		prev = seg.end;
 	}
 
 	public void addPathSegments(PathSegment... seg) {
-		segments.addAll(Arrays.asList(seg));
-		prev = seg[seg.length - 1].end;
+		for (PathSegment s : seg) {
+			addPathSegment(s);
+		}
+	}
+
+	/**
+	 * @return number of waypoints, always one more than the number of segments
+	 */
+	public int getWaypointCount() {
+		return segments.size() + 1;
+	}
+
+	public Waypoint getWaypoint(int index) {
+		checkWaypointIndex(index, getWaypointCount());
+		if (index == segments.size()) {
+			return prev;
+		}
+		return segments.get(index).start;
+	}
+
+	/**
+	 * @return the mid control percent the segment ending at waypoint index was
+	 *         made with (see {@link #addWaypoint(Waypoint, double)}), or 0.5 if it
+	 *         was added directly
+	 */
+	public double getMidControlPercent(int index) {
+		checkWaypointIndex(index, getWaypointCount());
+		if (index == 0)
+			throw new IndexOutOfBoundsException("no segment ends at the first waypoint");
+		double n = midControlPercents.get(index - 1);
+		return Double.isNaN(n) ? 0.5 : n;
+	}
+
+	/**
+	 * Moves waypoint index to w. Only the one or two segments touching it get
+	 * remade; see {@link #generateProfile(MotionProfileConstraints)} for what
+	 * happens to the profile.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if w can't be connected to its neighbors. The path is left
+	 *             unchanged
+	 * @throws IllegalStateException
+	 *             if a segment touching waypoint index was added with
+	 *             {@link #addPathSegment(PathSegment)}, since remaking it would
+	 *             throw away its curve. The path is left unchanged
+	 */
+	public void replaceWaypoint(int index, Waypoint w) {
+		checkWaypointIndex(index, getWaypointCount());
+		if (index > 0)
+			checkRemakeable(index - 1);
+		if (index < segments.size())
+			checkRemakeable(index);
+		PathSegment before = null;
+		PathSegment after = null;
+		if (index > 0) {
+			before = connect(getWaypoint(index - 1), w, getMidControlPercent(index));
+		}
+		if (index < segments.size()) {
+			after = connect(w, getWaypoint(index + 1), getMidControlPercent(index + 1));
+		}
+		if (before != null) {
+			setSegment(index - 1, before, midControlPercents.get(index - 1));
+		}
+		if (after != null) {
+			setSegment(index, after, midControlPercents.get(index));
+		}
+		if (index == segments.size()) {
+			prev = w;
+		}
+		invalidateProfile(Math.max(0, index - 1));
+	}
+
+	/**
+	 * Changes the mid control percent of the segment ending at waypoint index and
+	 * remakes that segment. A segment added with
+	 * {@link #addPathSegment(PathSegment)} gets replaced by one made from its
+	 * waypoints
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the segment can't be remade with n. The path is left unchanged
+	 */
+	public void setMidControlPercent(int index, double midControlPercent) {
+		checkWaypointIndex(index, getWaypointCount());
+		if (index == 0)
+			throw new IndexOutOfBoundsException("no segment ends at the first waypoint");
+		setSegment(index - 1, connect(getWaypoint(index - 1), getWaypoint(index), midControlPercent),
+				midControlPercent);
+		invalidateProfile(index - 1);
+	}
+
+	public void insertWaypoint(int index, Waypoint w) {
+		insertWaypoint(index, w, 0.5);
+	}
+
+	/**
+	 * Inserts w so that it becomes waypoint index, moving the waypoints at and
+	 * after index back by one. Only the segment that used to connect the
+	 * neighbors of w gets remade, as the two segments on either side of it.
+	 *
+	 * @param midControlPercent
+	 *            mid control percent of the segment ending at w. Not used if w
+	 *            becomes the first waypoint
+	 * @throws IllegalArgumentException
+	 *             if w can't be connected to its neighbors. The path is left
+	 *             unchanged
+	 * @throws IllegalStateException
+	 *             if w goes in the middle of a segment that was added with
+	 *             {@link #addPathSegment(PathSegment)}, since splitting it would
+	 *             throw away its curve. The path is left unchanged
+	 */
+	public void insertWaypoint(int index, Waypoint w, double midControlPercent) {
+		checkWaypointIndex(index, getWaypointCount() + 1);
+		if (index > 0 && index < getWaypointCount())
+			checkRemakeable(index - 1);
+		if (index == 0) {
+			PathSegment first = connect(w, getWaypoint(0), 0.5);
+			addSegment(0, first, 0.5);
+		} else if (index == getWaypointCount()) {
+			PathSegment last = connect(prev, w, midControlPercent);
+			addSegment(segments.size(), last, midControlPercent);
+			prev = w;
+		} else {
+			PathSegment before = connect(getWaypoint(index - 1), w, midControlPercent);
+			PathSegment after = connect(w, getWaypoint(index), getMidControlPercent(index));
+			setSegment(index - 1, after, midControlPercents.get(index - 1));
+			addSegment(index - 1, before, midControlPercent);
+		}
+		invalidateProfile(Math.max(0, index - 1));
+	}
+
+	/**
+	 * Removes waypoint index. If it was in the middle of the path, its two
+	 * segments get replaced by one connecting its neighbors, made with the mid
+	 * control percent of the segment that ended at the waypoint after it.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the neighbors can't be connected. The path is left unchanged
+	 * @throws IllegalStateException
+	 *             if the waypoint is in the middle of the path and one of its
+	 *             segments was added with {@link #addPathSegment(PathSegment)},
+	 *             since merging them would throw away its curve. The path is left
+	 *             unchanged
+	 */
+	public void removeWaypoint(int index) {
+		checkWaypointIndex(index, getWaypointCount());
+		if (segments.isEmpty())
+			throw new IllegalStateException("can't remove the only waypoint");
+		if (index > 0 && index < segments.size()) {
+			checkRemakeable(index - 1);
+			checkRemakeable(index);
+		}
+		if (index == 0) {
+			removeSegment(0);
+		} else if (index == segments.size()) {
+			prev = getWaypoint(index - 1);
+			removeSegment(index - 1);
+		} else {
+			PathSegment merged = connect(getWaypoint(index - 1), getWaypoint(index + 1),
+					getMidControlPercent(index + 1));
+			setSegment(index - 1, merged, midControlPercents.get(index));
+			removeSegment(index);
+		}
+		invalidateProfile(Math.max(0, index - 1));
+	}
+
+	/**
+	 * Makes a new path that starts at pose and goes through waypoint next and
+	 * every waypoint after it, for replanning after the robot got pushed off this
+	 * path. Only the segment from pose to next is new. The rest are shared with
+	 * this path, along with their tables, so nothing but that segment's table
+	 * needs to be built. The new path has no profile yet.
+	 *
+	 * @param pose
+	 *            where the robot is, pointed the way this path is driven. Its
+	 *            velocity isn't used
+	 * @param next
+	 *            index of the first waypoint of this path to go to
+	 * @throws IllegalArgumentException
+	 *             if pose can't be connected to waypoint next
+	 */
+	public Path replanFrom(Waypoint pose, int next) {
+		checkWaypointIndex(next, getWaypointCount());
+		if (next == 0)
+			throw new IndexOutOfBoundsException("can't replan to the first waypoint");
+		Path path = new Path(pose, driveForwards);
+		// the new segment is always made from waypoints, even if the one it replaces
+		// was added directly, so it gets a real mid control percent
+		double midControlPercent = getMidControlPercent(next);
+		path.addSegment(0, connect(pose, getWaypoint(next), midControlPercent), midControlPercent);
+		path.segments.addAll(segments.subList(next, segments.size()));
+		path.midControlPercents.addAll(midControlPercents.subList(next, segments.size()));
+		path.prev = prev;
+		return path;
+	}
+
+	private static void checkWaypointIndex(int index, int count) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("waypoint " + index + " of " + count);
+	}
+
+	/**
+	 * @return if segment index was made from its waypoints, so it can be remade
+	 *         with another mid control percent. Segments added directly can't
+	 */
+	boolean hasMidControlPercent(int index) {
+		return !Double.isNaN(midControlPercents.get(index));
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if segment index was added directly, so remaking it from its
+	 *             waypoints would lose the curve it was added with
+	 */
+	private void checkRemakeable(int index) {
+		if (!hasMidControlPercent(index))
+			throw new IllegalStateException(
+					"segment " + index + " was added with addPathSegment, so it can't be remade");
+	}
+
+	static PathSegment connect(Waypoint from, Waypoint to, double midControlPercent) {
+		Curve curve = makeCurve(from, to, midControlPercent);
+		if (curve == null)
+			throw new IllegalArgumentException("can't connect " + from + " to " + to);
+		return new PathSegment(from, to, curve);
+	}
+
+	private void addSegment(int index, PathSegment seg, double midControlPercent) {
+		segments.add(index, seg);
+		midControlPercents.add(index, midControlPercent);
+		invalidateProfile(index);
+	}
+
+	private void setSegment(int index, PathSegment seg, double midControlPercent) {
+		segments.set(index, seg);
+		midControlPercents.set(index, midControlPercent);
+	}
+
+	private void removeSegment(int index) {
+		segments.remove(index);
+		midControlPercents.remove(index);
+	}
+
+	/**
+	 * Drops the profile, and the profiles of segment index and every segment after
+	 * it, since where they start depends on every segment before them
+	 */
+	private void invalidateProfile(int index) {
+		while (segmentProfiles.size() > index) {
+			segmentProfiles.remove(segmentProfiles.size() - 1);
+		}
+		profile = null;
 	}
 
 	public void generateProfile(double maxVelocity, double maxAcceleration) {
-		for (PathSegment seg : segments) {
-			if (seg.curve instanceof BezierCurve) {
-				((BezierCurve) seg.curve).makeTable();
+		generateProfile(new MotionProfileConstraints(maxVelocity, maxAcceleration));
+	}
+
+	/**
+	 * Generates the profile for the whole path. After the path is edited, only
+	 * the segments from the first one that changed onwards get profiled again
+	 * (and only segments that are new need their tables built); everything
+	 * before it is reused. Changing the constraints redoes the whole profile.
+	 */
+	public void generateProfile(MotionProfileConstraints constraints) {
+		generateProfile(constraints, null);
+	}
+
+	/**
+	 * Same as {@link #generateProfile(MotionProfileConstraints)}, but starts the
+	 * profile with the robot already moving, like when a path gets replanned
+	 * partway through a run. Changing the initial state redoes the whole profile.
+	 *
+	 * @param initialState
+	 *            the robot's velocity and acceleration, with the same signs as
+	 *            {@link #getProfile()} (so negative for paths driven backwards).
+	 *            The profile still starts at time 0 and position 0, so its time and
+	 *            position aren't used. Null to start at rest
+	 */
+	public void generateProfile(MotionProfileConstraints constraints, MotionState initialState) {
+		if (initialState != null) {
+			initialState = new MotionState(0, 0, initialState.vel(), initialState.acc());
+			if (!driveForwards) {
+				initialState = initialState.flipped();
 			}
 		}
-		MotionProfileConstraints constraints = new MotionProfileConstraints(maxVelocity, maxAcceleration);
-
-		MotionState previousState = new MotionState(0, 0, 0, maxAcceleration);
-
-		// System.out.println("Total length: " +
-		// segments.get(0).curve.getTotalArcLength());
-		double goalPos = segments.get(0).curve.getTotalArcLength() + previousState.pos();
-
-		MotionProfileGoal goalState = new MotionProfileGoal(goalPos, Math.abs(segments.get(0).end.vel),
-				CompletionBehavior.VIOLATE_MAX_ACCEL); // necessary because we restrict profiles to only moving forwards
-														// or backwards
-		MotionProfile currentProfile = GenerateMotionProfile.generateStraightMotionProfile(constraints, goalState,
-				previousState);
-		previousState = currentProfile.endState();
-
-		for (int i = 1; i < segments.size(); i++) {
-			goalPos = segments.get(i).curve.getTotalArcLength() + previousState.pos();
-			goalState = new MotionProfileGoal(goalPos, segments.get(i).end.vel, CompletionBehavior.VIOLATE_MAX_ACCEL);
-			currentProfile.appendProfile(
-					GenerateMotionProfile.generateStraightMotionProfile(constraints, goalState, previousState));
-			previousState = currentProfile.endState();
-		}
-		profile = currentProfile;
-		if (!driveForwards) {
-			for (MotionSegment s : profile.segments()) {
-				s.setStart(s.start().flipped());
-				s.setEnd(s.end().flipped());
+		if (!constraints.equals(this.constraints) || !Objects.equals(initialState, this.initialState)) {
+			this.constraints = constraints;
+			this.initialState = initialState;
+			invalidateProfile(0);
+		}
+		int first = segmentProfiles.size();
+		// every table is independent, so build them all at once
+		segments.subList(first, segments.size()).parallelStream().filter(seg -> seg.curve instanceof BezierCurve)
+				.forEach(seg -> ((BezierCurve) seg.curve).makeTable());
+
+		MotionState previousState;
+		if (first > 0) {
+			previousState = segmentProfiles.get(first - 1).endState();
+		} else if (initialState != null) {
+			previousState = initialState;
+		} else {
+			previousState = new MotionState(0, 0, 0, constraints.max_abs_acc());
+		}
+		for (int i = first; i < segments.size(); i++) {
+			double goalPos = segments.get(i).curve.getTotalArcLength() + previousState.pos();
+			// necessary because we restrict profiles to only moving forwards or backwards
+			double goalVel = i == 0 ? Math.abs(segments.get(i).end.vel) : segments.get(i).end.vel;
+			MotionProfileGoal goalState = new MotionProfileGoal(goalPos, goalVel, CompletionBehavior.VIOLATE_MAX_ACCEL);
+			MotionProfile segmentProfile = GenerateMotionProfile.generateStraightMotionProfile(constraints, goalState,
+					previousState);
+			segmentProfiles.add(segmentProfile);
+			previousState = segmentProfile.endState();
+		}
+
+		// copy every segment so the stored ones never get flipped or changed
+		profile = new MotionProfile();
+		for (MotionProfile segmentProfile : segmentProfiles) {
+			for (MotionSegment s : segmentProfile.segments()) {
+				if (driveForwards) {
+					profile.appendSegment(new MotionSegment(s.start(), s.end()));
+				} else {
+					profile.appendSegment(new MotionSegment(s.start().flipped(), s.end().flipped()));
+				}
 			}
 		}
 	}
@@ -256,6 +583,12 @@ public final class Path {
 		}
 	}
 
+	/**
+	 * Velocity and heading of each side at evenly spaced times. Points are stored
+	 * in primitive arrays, so finding the points around a time is index
+	 * arithmetic instead of a search, and the lookups that take an output pair
+	 * don't allocate anything.
+	 */
 	public static class PointProfile {
 
 		public final double pointDurSec;
@@ -264,99 +597,178 @@ public final class Path {
 		public final double finalAbsCenterPos;
 		public final double initialHeading;
 
-		private final TreeMap<Double, PointPair<VelocityPoint>> map;
+		/**
+		 * Time of each point. The same as index * pointDurSec, except for rounding
+		 * error, because the times are added up one point at a time
+		 */
+		private double[] times;
+		private double[] leftVelocity;
+		private double[] leftHeading;
+		private double[] rightVelocity;
+		private double[] rightHeading;
+		private int size;
 
 		public PointProfile(MyIterator<PointPair<VelocityPoint>> iterator, double finalAbsCenterPos,
 				double initialHeading) {
-			totalTimeSec = 0;
-			this.pointDurSec = iterator.baseDurationSec;
-			this.pointDurMs = iterator.baseDurationMs;
-			this.finalAbsCenterPos = finalAbsCenterPos;
-			this.initialHeading = initialHeading;
-			map = new TreeMap<>();
-			while (iterator.hasNext()) {
-				PointPair<VelocityPoint> pair = iterator.next();
-				map.put(totalTimeSec, pair);
-				// System.out.println(pair.left.velocity + ", " + pair.right.velocity);
-				totalTimeSec += pointDurSec;
-			}
+			this(iterator, iterator.baseDurationSec, iterator.baseDurationMs, finalAbsCenterPos, initialHeading);
 		}
 
+		/**
+		 * Makes a profile without a point duration. Every point is at time 0, so
+		 * only the last one is kept and every lookup returns it.
+		 */
 		public PointProfile(Iterator<PointPair<VelocityPoint>> iterator, double finalAbsCenterPos,
 				double initialHeading) {
+			this(iterator, 0, 0, finalAbsCenterPos, initialHeading);
+		}
+
+		private PointProfile(Iterator<PointPair<VelocityPoint>> iterator, double pointDurSec, int pointDurMs,
+				double finalAbsCenterPos, double initialHeading) {
 			totalTimeSec = 0;
-			// this.pointDurSec = iterator.baseDurationSec;
-			this.pointDurSec = 0;
-			this.pointDurMs = 0;
-			// this.pointDurMs = iterator.baseDurationMs;
+			this.pointDurSec = pointDurSec;
+			this.pointDurMs = pointDurMs;
 			this.finalAbsCenterPos = finalAbsCenterPos;
 			this.initialHeading = initialHeading;
-			map = new TreeMap<>();
+			int capacity = 16;
+			times = new double[capacity];
+			leftVelocity = new double[capacity];
+			leftHeading = new double[capacity];
+			rightVelocity = new double[capacity];
+			rightHeading = new double[capacity];
+			size = 0;
 			while (iterator.hasNext()) {
 				PointPair<VelocityPoint> pair = iterator.next();
-				map.put(totalTimeSec, pair);
 				// System.out.println(pair.left.velocity + ", " + pair.right.velocity);
+				if (size > 0 && times[size - 1] == totalTimeSec) {
+					// same time as the last point, so it replaces it
+					size--;
+				}
+				if (size == times.length) {
+					grow();
+				}
+				times[size] = totalTimeSec;
+				leftVelocity[size] = pair.left.velocity;
+				leftHeading[size] = pair.left.headingDeg;
+				rightVelocity[size] = pair.right.velocity;
+				rightHeading[size] = pair.right.headingDeg;
+				size++;
 				totalTimeSec += pointDurSec;
 			}
 		}
 
+		private void grow() {
+			int capacity = times.length * 2;
+			times = Arrays.copyOf(times, capacity);
+			leftVelocity = Arrays.copyOf(leftVelocity, capacity);
+			leftHeading = Arrays.copyOf(leftHeading, capacity);
+			rightVelocity = Arrays.copyOf(rightVelocity, capacity);
+			rightHeading = Arrays.copyOf(rightHeading, capacity);
+		}
+
 		public double getTotalTimeSec() {
 			return totalTimeSec;
 		}
 
-		public PointPair<VelocityPoint> getInterpolatedPoint(double timeSec) {
-			PointPair<VelocityPoint> value = map.get(timeSec);
-			if (value != null) {
-				return value;
-			}
-			Entry<Double, PointPair<VelocityPoint>> lower = map.floorEntry(timeSec);
-			Entry<Double, PointPair<VelocityPoint>> upper = map.ceilingEntry(timeSec);
+		/**
+		 * @return number of points in the profile
+		 */
+		public int size() {
+			return size;
+		}
 
-			if (lower == null && upper == null) {
-				System.err.println("ERROR: BOTH SHOULDN'T BE NULL");
-				return null;
-			} else if (lower == null) {
-				return upper.getValue();
-			} else if (upper == null) {
-				return lower.getValue();
+		/**
+		 * @return index of the last point at or before timeSec, or -1 if timeSec is
+		 *         before the first point
+		 */
+		private int floorIndex(double timeSec) {
+			if (size == 0 || timeSec < times[0]) {
+				return -1;
 			}
+			int i = size - 1;
+			if (pointDurSec > 0) {
+				double guess = timeSec / pointDurSec;
+				if (guess < i) {
+					i = (int) guess;
+				}
+			}
+			// the guess can be one off because of rounding in the times
+			while (i < size - 1 && times[i + 1] <= timeSec) {
+				i++;
+			}
+			while (i > 0 && times[i] > timeSec) {
+				i--;
+			}
+			return i;
+		}
 
-			VelocityPoint leftLow = lower.getValue().left;
-			VelocityPoint leftUp = upper.getValue().left;
-
-			VelocityPoint rightLow = lower.getValue().right;
-			VelocityPoint rightUp = upper.getValue().right;
+		public PointPair<VelocityPoint> getInterpolatedPoint(double timeSec) {
+			return getInterpolatedPoint(timeSec, newPair());
+		}
 
-			double dt = upper.getKey() - lower.getKey();
-			double mu = (timeSec - lower.getKey()) / dt;
-			double leftV = Util.lerp(leftLow.velocity, leftUp.velocity, mu);
-			double rightV = Util.lerp(rightLow.velocity, rightUp.velocity, mu);
-			double leftH = Util.lerp(leftLow.headingDeg, leftUp.headingDeg, mu);
-			double rightH = Util.lerp(rightLow.headingDeg, rightUp.headingDeg, mu);
-			return new PointPair<VelocityPoint>(new VelocityPoint(leftV, leftH), new VelocityPoint(rightV, rightH));
+		/**
+		 * Same as {@link #getInterpolatedPoint(double)}, but writes the result into
+		 * out instead of making a new pair
+		 *
+		 * @return out, or null if the profile is empty
+		 */
+		public PointPair<VelocityPoint> getInterpolatedPoint(double timeSec, PointPair<VelocityPoint> out) {
+			if (size == 0) {
+				Instrumentation.warning("point profile is empty");
+				return null;
+			}
+			int lower = floorIndex(timeSec);
+			if (lower < 0) {
+				return set(out, 0);
+			} else if (lower == size - 1 || times[lower] == timeSec) {
+				return set(out, lower);
+			}
+			int upper = lower + 1;
+			double dt = times[upper] - times[lower];
+			double mu = (timeSec - times[lower]) / dt;
+			out.left.velocity = Util.lerp(leftVelocity[lower], leftVelocity[upper], mu);
+			out.left.headingDeg = Util.lerp(leftHeading[lower], leftHeading[upper], mu);
+			out.right.velocity = Util.lerp(rightVelocity[lower], rightVelocity[upper], mu);
+			out.right.headingDeg = Util.lerp(rightHeading[lower], rightHeading[upper], mu);
+			return out;
 		}
 
 		public PointPair<VelocityPoint> getCeilingPoint(double timeSec) {
-			PointPair<VelocityPoint> value = map.get(timeSec);
-			if (value != null) {
-				return value;
-			}
-			Entry<Double, PointPair<VelocityPoint>> lower = map.floorEntry(timeSec);
-			Entry<Double, PointPair<VelocityPoint>> upper = map.ceilingEntry(timeSec);
+			return getCeilingPoint(timeSec, newPair());
+		}
 
-			if (lower == null && upper == null) {
-				System.err.println("ERROR: BOTH SHOULDN'T BE NULL");
+		/**
+		 * Same as {@link #getCeilingPoint(double)}, but writes the result into out
+		 * instead of making a new pair
+		 *
+		 * @return out, or null if the profile is empty
+		 */
+		public PointPair<VelocityPoint> getCeilingPoint(double timeSec, PointPair<VelocityPoint> out) {
+			if (size == 0) {
+				Instrumentation.warning("point profile is empty");
 				return null;
-			} else if (lower == null) {
-				return upper.getValue();
-			} else if (upper == null) {
-				return lower.getValue();
 			}
+			int lower = floorIndex(timeSec);
+			if (lower < 0) {
+				return set(out, 0);
+			} else if (lower == size - 1 || times[lower] == timeSec) {
+				return set(out, lower);
+			}
+			return set(out, lower + 1);
+		}
 
-			VelocityPoint upperLeft = upper.getValue().left;
-			VelocityPoint upperRight = upper.getValue().right;
-			return new PointPair<VelocityPoint>(new VelocityPoint(upperLeft.velocity, upperLeft.headingDeg),
-					new VelocityPoint(upperRight.velocity, upperRight.headingDeg));
+		private PointPair<VelocityPoint> set(PointPair<VelocityPoint> out, int i) {
+			out.left.velocity = leftVelocity[i];
+			out.left.headingDeg = leftHeading[i];
+			out.right.velocity = rightVelocity[i];
+			out.right.headingDeg = rightHeading[i];
+			return out;
+		}
+
+		/**
+		 * @return a pair to pass to the lookups that take an output
+		 */
+		public static PointPair<VelocityPoint> newPair() {
+			return new PointPair<VelocityPoint>(new VelocityPoint(), new VelocityPoint());
 		}
 	}
 
@@ -380,6 +792,16 @@ public final class Path {
 
 			int i = 0;
 
+			final MotionProfileSampler sampler = new MotionProfileSampler(profile);
+			// one element buffers so each point only inverts its arc length once
+			final double[] arcLength = new double[1];
+			final double[] heading = new double[1];
+			final double[] curvature = new double[1];
+			// the whole run is timed as one stage, like getColumnarTrajectory, from the
+			// first point until the last one or until sampling throws
+			boolean timing = false;
+			long start;
+
 			@Override
 			public boolean hasNext() {
 				return i < pointCount;
@@ -387,30 +809,44 @@ public final class Path {
 
 			@Override
 			public PointPair<VelocityPoint> next() {
+				if (i == 0 && !timing) {
+					start = Instrumentation.start(Stage.SAMPLING);
+					timing = true;
+				}
+				boolean finished = true;
+				try {
+					PointPair<VelocityPoint> pair = sampleNext();
+					finished = !hasNext();
+					return pair;
+				} finally {
+					if (finished && timing) {
+						Instrumentation.finish(Stage.SAMPLING, start, segments.size(), 0, i);
+						timing = false;
+					}
+				}
+			}
+
+			private PointPair<VelocityPoint> sampleNext() {
 				VelocityPoint leftPoint = new VelocityPoint();
 				VelocityPoint rightPoint = new VelocityPoint();
 
-				MotionState currentEndState = profile.stateByTimeClamped((i) * pointDurationSec);
-				// System.out.println("End Pos: " + currentEndState.pos());
-				if (Math.abs(currentEndState.pos()) >= currentSegmentLength + segmentLengthSum) {
-					System.out.println("CurrentState pos is greater than current curve length");
-					if (cs < segments.size() - 1) {
-						System.out.println("Selecting the next curve.");
-						segmentLengthSum += currentSegmentLength;
-						cs++;
-						currentSegment = segments.get(cs);
-						currentSegmentLength = currentSegment.curve.getTotalArcLength();
-					} else {
-						System.out.println("No more curves available.");
-					}
+				sampler.sample((i) * pointDurationSec);
+				// System.out.println("End Pos: " + sampler.pos());
+				// past the end of the current curve, so select the next one if there is one
+				if (Math.abs(sampler.pos()) >= currentSegmentLength + segmentLengthSum && cs < segments.size() - 1) {
+					Instrumentation.count(Counter.SEGMENT_TRANSITIONS);
+					segmentLengthSum += currentSegmentLength;
+					cs++;
+					currentSegment = segments.get(cs);
+					currentSegmentLength = currentSegment.curve.getTotalArcLength();
 				}
 
-				double endCurvature = currentSegment.curve
-						.getCurvatureAtArcLength(Math.abs(currentEndState.pos()) - segmentLengthSum);
-				double endArcLength = Math.abs(currentEndState.pos()) - segmentLengthSum;
-				double endVel = currentEndState.vel();
+				arcLength[0] = Math.abs(sampler.pos()) - segmentLengthSum;
+				currentSegment.curve.sampleAtArcLengths(arcLength, 0, 1, null, null, heading, curvature);
+				double endCurvature = curvature[0];
+				double endVel = sampler.vel();
 				// double endVel = profile.velocityByTimeClamped((i) * pointDurationSec);
-				double endHeading = Math.toDegrees(currentSegment.curve.getHeadingAtArcLength(endArcLength));
+				double endHeading = Math.toDegrees(heading[0]);
 
 				leftPoint.headingDeg = endHeading;
 				rightPoint.headingDeg = endHeading;
@@ -419,8 +855,7 @@ public final class Path {
 					leftPoint.velocity = endVel;
 					rightPoint.velocity = endVel;
 				} else { // if curving
-					double curvature = currentSegment.curve.getCurvatureAtArcLength(endArcLength);
-					double r = 1 / curvature;
+					double r = 1 / endCurvature;
 					double lR = Math.abs(r - robotWidth / 2);
 					double rR = Math.abs(r + robotWidth / 2);
 					r = Math.abs(r);
@@ -441,37 +876,71 @@ public final class Path {
 	}
 
 	public TrajectoryHolder getTrajectoryPoints(double robotWidth, double pointDurationSec) {
-		int cs = 0;
-		PathSegment currentSegment = segments.get(0);
-		double segmentLengthSum = 0;
+		return getColumnarTrajectory(robotWidth, pointDurationSec).toTrajectoryHolder();
+	}
+
+	/**
+	 * Same as {@link #getTrajectoryPoints(double, double)}, but without making an
+	 * object for every point. Both sides share the same x and y arrays, which hold
+	 * the center of the robot.
+	 */
+	public ColumnarTrajectory getColumnarTrajectory(double robotWidth, double pointDurationSec) {
+		long start = Instrumentation.start(Stage.SAMPLING);
+		ColumnarTrajectory trajectory = null;
+		try {
+			trajectory = columnarTrajectory(robotWidth, pointDurationSec);
+			return trajectory;
+		} finally {
+			Instrumentation.finish(Stage.SAMPLING, start, segments.size(), 0,
+					trajectory == null ? 0 : trajectory.length());
+		}
+	}
 
+	private ColumnarTrajectory columnarTrajectory(double robotWidth, double pointDurationSec) {
 		double duration = profile.duration();
 		int pointCount = (int) (duration / pointDurationSec);
 		double increment = duration / (pointCount - 1);
 
-		TrajectoryPoint[] left = new TrajectoryPoint[pointCount];
-		TrajectoryPoint[] right = new TrajectoryPoint[pointCount];
+		double[] pos = new double[pointCount];
+		double[] vel = new double[pointCount];
+		double[] acc = new double[pointCount];
+		double[] arcLengths = new double[pointCount];
+		double[] x = new double[pointCount];
+		double[] y = new double[pointCount];
+		double[] curvatures = new double[pointCount];
+		new MotionProfileSampler(profile).sample(0, increment, pointCount, pos, vel, acc);
+
+		// find which segment each point is on, then sample each segment's points in
+		// one pass
+		int cs = 0;
+		PathSegment currentSegment = segments.get(0);
+		double segmentLengthSum = 0;
+		int segmentStart = 0;
+		arcLengths[0] = 0;
+		for (int i = 1; i < pointCount; i++) {
+			double currentLength = currentSegment.curve.getTotalArcLength();
+			if (pos[i] > currentLength + segmentLengthSum && cs + 1 < segments.size()) {
+				currentSegment.curve.sampleAtArcLengths(arcLengths, segmentStart, i, x, y, null, curvatures);
+				segmentStart = i;
+				Instrumentation.count(Counter.SEGMENT_TRANSITIONS);
+				cs++;
+				segmentLengthSum += currentLength;
+				currentSegment = segments.get(cs);
+			}
+			arcLengths[i] = pos[i] - segmentLengthSum;
+		}
+		currentSegment.curve.sampleAtArcLengths(arcLengths, segmentStart, pointCount, x, y, null, curvatures);
 
-		MotionState previousState = profile.stateByTime(0).get();
-		Vector coord = currentSegment.curve.getPointAtArcLength(0);
+		ColumnarTrajectory.Side left = new ColumnarTrajectory.Side(x, y, new double[pointCount],
+				new double[pointCount], new double[pointCount], pointDurationSec);
+		ColumnarTrajectory.Side right = new ColumnarTrajectory.Side(x, y, new double[pointCount],
+				new double[pointCount], new double[pointCount], pointDurationSec);
 
-		left[0] = new TrajectoryPoint(coord.x, coord.y, previousState.pos(), previousState.vel(), previousState.acc(),
-				pointDurationSec);
-		right[0] = new TrajectoryPoint(coord.x, coord.y, previousState.pos(), previousState.vel(), previousState.acc(),
-				pointDurationSec);
+		left.position[0] = right.position[0] = pos[0];
+		left.velocity[0] = right.velocity[0] = vel[0];
+		left.acceleration[0] = right.acceleration[0] = acc[0];
 
 		for (int i = 1; i < pointCount; i++) {
-			MotionState state = profile.stateByTimeClamped(i * increment);
-			double currentLength = currentSegment.curve.getTotalArcLength();
-			if (state.pos() > currentLength + segmentLengthSum) {
-				if (cs + 1 >= segments.size()) {
-
-				} else {
-					cs++;
-					segmentLengthSum += currentLength;
-					currentSegment = segments.get(cs);
-				}
-			}
 			/*
 			 * Because K positive is curving to the left, and K negative is to the right,
 			 * the side new radii =
@@ -485,15 +954,13 @@ public final class Path {
 			 * for right side
 			 */
 
-			double curvature = currentSegment.curve.getCurvatureAtArcLength(state.pos() - segmentLengthSum);
-			double dArc = state.pos() - previousState.pos();
-			coord = currentSegment.curve.getPointAtArcLength(state.pos() - segmentLengthSum);
-			// System.out.println(coord);
+			double curvature = curvatures[i];
+			double dArc = pos[i] - pos[i - 1];
 			if (Math.abs(curvature) < 1.0E-20) {
-				left[i] = new TrajectoryPoint(coord.x, coord.y, left[i - 1].position + dArc, state.vel(), state.acc(),
-						pointDurationSec);
-				right[i] = new TrajectoryPoint(coord.x, coord.y, right[i - 1].position + dArc, state.vel(), state.acc(),
-						pointDurationSec);
+				left.position[i] = left.position[i - 1] + dArc;
+				right.position[i] = right.position[i - 1] + dArc;
+				left.velocity[i] = right.velocity[i] = vel[i];
+				left.acceleration[i] = right.acceleration[i] = acc[i];
 			} else {
 				double r = 1 / curvature;
 				double lR = Math.abs(r - robotWidth / 2);
@@ -501,18 +968,17 @@ public final class Path {
 				r = Math.max(lR, rR);
 				double lK = lR / r;
 				double rK = rR / r;
-				double leftV = state.vel() * lK;
-				double rightV = state.vel() * rK;
-				double leftA = (leftV - left[i - 1].velocity) / pointDurationSec;
-				double rightA = (rightV - right[i - 1].velocity) / pointDurationSec;
-				left[i] = new TrajectoryPoint(coord.x, coord.y, left[i - 1].position + dArc * lK, leftV, leftA,
-						pointDurationSec);
-				right[i] = new TrajectoryPoint(coord.x, coord.y, right[i - 1].position + dArc * rK, rightV, rightA,
-						pointDurationSec);
+				double leftV = vel[i] * lK;
+				double rightV = vel[i] * rK;
+				left.position[i] = left.position[i - 1] + dArc * lK;
+				right.position[i] = right.position[i - 1] + dArc * rK;
+				left.acceleration[i] = (leftV - left.velocity[i - 1]) / pointDurationSec;
+				right.acceleration[i] = (rightV - right.velocity[i - 1]) / pointDurationSec;
+				left.velocity[i] = leftV;
+				right.velocity[i] = rightV;
 			}
-			previousState = state;
 		}
-		return new TrajectoryHolder(left, right);
+		return new ColumnarTrajectory(left, right);
 	}
 
 	public static boolean isPossible(TrajectoryHolder points, double lKv, double lKa, double lKs, double rKv,
@@ -528,6 +994,25 @@ public final class Path {
 		return leftMaxVolt <= 12 && rightMaxVolt <= 12;
 	}
 
+	/**
+	 * Same check as
+	 * {@link #isPossible(TrajectoryHolder, double, double, double, double, double, double)}
+	 */
+	public static boolean isPossible(ColumnarTrajectory points, double lKv, double lKa, double lKs, double rKv,
+			double rKa, double rKs) {
+		return maxAbsVoltage(points.left, lKv, lKa, lKs) <= 12 && maxAbsVoltage(points.right, rKv, rKa, rKs) <= 12;
+	}
+
+	private static double maxAbsVoltage(ColumnarTrajectory.Side side, double kV, double kA, double kS) {
+		double[] velocity = side.velocity;
+		double[] acceleration = side.acceleration;
+		double maxVolt = 0;
+		for (int i = 0; i < velocity.length; i++) {
+			maxVolt = Math.max(maxVolt, Math.abs(velocity[i] * kV + acceleration[i] * kA + kS));
+		}
+		return maxVolt;
+	}
+
 	public static class TrajectoryHolder {
 		public final TrajectoryPoint[] left;
 		public final TrajectoryPoint[] right;
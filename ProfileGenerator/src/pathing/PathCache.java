@@ -0,0 +1,355 @@
+package pathing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import instrumentation.Instrumentation;
+import motion.MotionProfile;
+import motion.MotionSegment;
+import motion.MotionState;
+import pathing.Path.TrajectoryHolder;
+import pathing.PathPlanner.Request;
+
+/**
+ * Remembers generated profiles and trajectories so that asking for the same
+ * path again doesn't redo any of the work. Entries are keyed by a SHA-256 hash
+ * of everything that goes into making the path (see {@link #key(Request)}), so
+ * two requests that only differ by name share an entry.
+ *
+ * The most recently used entries are kept in memory, up to a fixed number.
+ * Optionally every entry is also written to a directory, so it survives
+ * eviction and restarts. Files that can't be read, including ones that are
+ * truncated or corrupt, are treated as misses and reported with
+ * {@link Instrumentation#warning(String)}.
+ *
+ * All methods are thread safe. Two threads missing the same key at once will
+ * both generate the path; the entry just gets stored twice.
+ */
+public class PathCache {
+
+	/**
+	 * Goes into every key and file, change it whenever path generation changes
+	 * what it outputs so old entries stop being used
+	 */
+	private static final int VERSION = 1;
+	private static final int MAGIC = 0x50415448;
+	private static final int HEADER_BYTES = 12;
+	private static final int SEGMENT_BYTES = 64;
+	private static final int POINT_BYTES = 48;
+
+	/**
+	 * A cached profile and trajectory. Every lookup returns a new copy, so
+	 * changing one doesn't affect the cache.
+	 */
+	public static class Entry {
+		public final MotionProfile profile;
+		public final TrajectoryHolder trajectory;
+
+		public Entry(MotionProfile profile, TrajectoryHolder trajectory) {
+			this.profile = profile;
+			this.trajectory = trajectory;
+		}
+
+		Entry copy() {
+			List<MotionSegment> segments = new ArrayList<>(profile.size());
+			for (MotionSegment s : profile.segments()) {
+				segments.add(new MotionSegment(s.start(), s.end()));
+			}
+			return new Entry(new MotionProfile(segments),
+					new TrajectoryHolder(trajectory.left.clone(), trajectory.right.clone()));
+		}
+	}
+
+	private final LinkedHashMap<String, Entry> memory;
+	private final File directory;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Makes a cache that only keeps entries in memory
+	 *
+	 * @param capacity
+	 *            most entries to keep, the least recently used one gets dropped
+	 *            first
+	 */
+	public PathCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 *
+	 * @param capacity
+	 *            most entries to keep in memory, the least recently used one gets
+	 *            dropped first
+	 * @param directory
+	 *            where to store every entry as a file, created if needed. Null to
+	 *            only use memory
+	 */
+	public PathCache(int capacity, File directory) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+		this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PathCache.Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.directory = directory;
+		if (directory != null) {
+			directory.mkdirs();
+		}
+	}
+
+	/**
+	 * @return hex SHA-256 of the waypoints, mid control percents, drive
+	 *         direction, constraints, robot width and point duration. Stays the
+	 *         same between runs
+	 */
+	public static String key(Request request) {
+		ByteBuffer buffer = ByteBuffer.allocate(64 + request.waypoints.length * 48);
+		buffer.putInt(VERSION);
+		buffer.putInt(request.waypoints.length);
+		for (int i = 0; i < request.waypoints.length; i++) {
+			Waypoint w = request.waypoints[i];
+			buffer.putDouble(w.position.x);
+			buffer.putDouble(w.position.y);
+			buffer.putDouble(w.heading.x);
+			buffer.putDouble(w.heading.y);
+			buffer.putDouble(w.vel);
+			// null means 0.5 everywhere, so it hashes the same as writing 0.5 out
+			buffer.putDouble(i == 0 ? 0 : request.midControlPercents == null ? 0.5 : request.midControlPercents[i - 1]);
+		}
+		buffer.put((byte) (request.driveForwards ? 1 : 0));
+		buffer.putDouble(request.constraints.max_abs_vel());
+		buffer.putDouble(request.constraints.max_abs_acc());
+		buffer.putDouble(request.robotWidth);
+		buffer.putDouble(request.pointDurationSec);
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+		digest.update(buffer.array(), 0, buffer.position());
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return a copy of the cached entry, or null if there isn't one
+	 */
+	public Entry get(Request request) {
+		String key = key(request);
+		Entry entry;
+		synchronized (this) {
+			entry = memory.get(key);
+		}
+		if (entry == null && directory != null) {
+			entry = read(file(key));
+			if (entry != null) {
+				synchronized (this) {
+					memory.put(key, entry);
+				}
+			}
+		}
+		synchronized (this) {
+			if (entry == null) {
+				misses++;
+			} else {
+				hits++;
+			}
+		}
+		return entry == null ? null : entry.copy();
+	}
+
+	/**
+	 * Stores a copy of profile and trajectory as the result of request
+	 */
+	public void put(Request request, MotionProfile profile, TrajectoryHolder trajectory) {
+		String key = key(request);
+		Entry entry = new Entry(profile, trajectory).copy();
+		synchronized (this) {
+			memory.put(key, entry);
+		}
+		if (directory != null) {
+			write(file(key), entry);
+		}
+	}
+
+	/**
+	 * Looks up request, making the path with {@link PathPlanner#plan(Request)}
+	 * and caching it if it isn't there
+	 */
+	public Entry getOrGenerate(Request request) {
+		Entry entry = get(request);
+		if (entry == null) {
+			PathPlanner.Result result = PathPlanner.plan(request);
+			put(request, result.path.getProfile(), result.trajectory);
+			entry = new Entry(result.path.getProfile(), result.trajectory);
+		}
+		return entry;
+	}
+
+	/**
+	 * Empties the memory cache. Files are left alone
+	 */
+	public synchronized void clear() {
+		memory.clear();
+	}
+
+	public synchronized int size() {
+		return memory.size();
+	}
+
+	/**
+	 * @return number of lookups that found an entry, in memory or on disk
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	private File file(String key) {
+		return new File(directory, key + ".path");
+	}
+
+	/**
+	 * Writes to a temporary file first and then moves it into place, so readers
+	 * never see a half written file
+	 */
+	private static void write(File file, Entry entry) {
+		File temp = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			List<MotionSegment> segments = entry.profile.segments();
+			out.writeInt(segments.size());
+			for (MotionSegment s : segments) {
+				writeState(out, s.start());
+				writeState(out, s.end());
+			}
+			writePoints(out, entry.trajectory.left);
+			writePoints(out, entry.trajectory.right);
+		} catch (IOException e) {
+			Instrumentation.warning("Couldn't write cached path " + file + ": " + e);
+			temp.delete();
+			return;
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Instrumentation.warning("Couldn't write cached path " + file + ": " + e);
+			temp.delete();
+		}
+	}
+
+	private static void writeState(DataOutputStream out, MotionState state) throws IOException {
+		out.writeDouble(state.t());
+		out.writeDouble(state.pos());
+		out.writeDouble(state.vel());
+		out.writeDouble(state.acc());
+	}
+
+	private static void writePoints(DataOutputStream out, TrajectoryPoint[] points) throws IOException {
+		out.writeInt(points.length);
+		for (TrajectoryPoint p : points) {
+			out.writeDouble(p.x);
+			out.writeDouble(p.y);
+			out.writeDouble(p.position);
+			out.writeDouble(p.velocity);
+			out.writeDouble(p.acceleration);
+			out.writeDouble(p.duration);
+		}
+	}
+
+	/**
+	 * @return the entry in file, or null if it doesn't exist or can't be read.
+	 *         Every count is checked against the file's length before anything is
+	 *         allocated, so a corrupt file can't ask for a huge array
+	 */
+	private static Entry read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		long length = file.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (length < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != VERSION) {
+				Instrumentation.warning("Ignoring cached path " + file + ", it isn't a version " + VERSION + " path");
+				return null;
+			}
+			long remaining = length - HEADER_BYTES;
+			int count = readCount(in, remaining, SEGMENT_BYTES);
+			remaining -= (long) count * SEGMENT_BYTES;
+			List<MotionSegment> segments = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				segments.add(new MotionSegment(readState(in), readState(in)));
+			}
+			TrajectoryPoint[] left = readPoints(in, remaining - 4);
+			remaining -= 4 + (long) left.length * POINT_BYTES;
+			TrajectoryPoint[] right = readPoints(in, remaining - 4);
+			remaining -= 4 + (long) right.length * POINT_BYTES;
+			if (remaining != 0)
+				throw new IOException(remaining + " bytes left over");
+			return new Entry(new MotionProfile(segments), new TrajectoryHolder(left, right));
+		} catch (IOException | RuntimeException e) {
+			Instrumentation.warning("Couldn't read cached path " + file + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a count of items that each take size bytes
+	 *
+	 * @param remaining
+	 *            bytes left in the file after the count
+	 * @throws IOException
+	 *             if the count is negative or there aren't enough bytes left for
+	 *             that many items
+	 */
+	private static int readCount(DataInputStream in, long remaining, int size) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || (long) count * size > remaining)
+			throw new IOException("bad count " + count + " with " + remaining + " bytes left");
+		return count;
+	}
+
+	private static MotionState readState(DataInputStream in) throws IOException {
+		return new MotionState(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+	}
+
+	private static TrajectoryPoint[] readPoints(DataInputStream in, long remaining) throws IOException {
+		TrajectoryPoint[] points = new TrajectoryPoint[readCount(in, remaining, POINT_BYTES)];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new TrajectoryPoint(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+					in.readDouble(), in.readDouble());
+		}
+		return points;
+	}
+
+}
@@ -0,0 +1,491 @@
+package pathing;
+
+import java.util.ArrayList;
+
+import math.BezierCurve;
+import math.Curve;
+import math.LineSegment;
+import math.Util;
+
+/**
+ * Finds the point on a path closest to wherever the robot is, for path
+ * followers and relocalization that need it every cycle.
+ *
+ * When it's made, each curve of the path is split with de Casteljau's algorithm
+ * until every piece is nearly straight, and the pieces go into a bounding box
+ * hierarchy. A piece's box holds its control points, so it holds the whole
+ * piece. A query walks the hierarchy nearest box first, skipping any box that
+ * is further away than the closest point found so far, then finds the closest
+ * point on each piece it reaches with a few Newton steps on the curve. Passing
+ * the same {@link Result} every cycle starts the search from last cycle's
+ * piece, so usually only a handful of pieces get looked at.
+ *
+ * The locator is a snapshot of the path's segments when it was made, so make a
+ * new one after changing the path's waypoints. Queries don't change anything,
+ * so any number of threads can share a locator, as long as each has its own
+ * Result.
+ */
+public class PathLocator {
+
+	/**
+	 * Default largest distance, in inches, of a piece's control points from the
+	 * line between its ends
+	 */
+	public static final double DEFAULT_FLATNESS = 0.25;
+	/**
+	 * Most times a curve gets split in half, so pieces are never shorter than
+	 * 1/2^16 of a curve
+	 */
+	private static final int MAX_SPLIT_DEPTH = 16;
+	private static final int NEWTON_STEPS = 8;
+	private static final double NEWTON_TOLERANCE = 1.0e-12;
+
+	/**
+	 * Where a query is closest to the path. Also holds the search's working
+	 * memory, so reusing one for every query doesn't allocate anything.
+	 */
+	public static class Result {
+		/**
+		 * index of the segment the closest point is on
+		 */
+		public int segment;
+		/**
+		 * parameter of the closest point on its segment's curve. For lines, the
+		 * fraction of the way along the line
+		 */
+		public double t;
+		/**
+		 * arc length along the whole path
+		 */
+		public double arcLength;
+		public double x;
+		public double y;
+		/**
+		 * distance from the query to the path. Positive when the query is to the
+		 * left of the path, going in the direction the path was made in
+		 */
+		public double crossTrackError;
+		/**
+		 * heading of the path at the closest point, see
+		 * {@link math.Vector#getHeading()}. Reversed for paths that are driven
+		 * backwards, so it's the heading the robot should have
+		 */
+		public double pathHeading;
+		/**
+		 * query heading minus {@link #pathHeading}, between -pi and pi
+		 */
+		public double headingError;
+
+		private int piece = -1;
+		private int[] stack;
+		private final double[] scratch = new double[5];
+		private final double[] best = new double[5];
+
+		public double distance() {
+			return Math.abs(crossTrackError);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("segment %d, arc length %f, (%f, %f), cross track %f, heading error %f", segment,
+					arcLength, x, y, crossTrackError, headingError);
+		}
+	}
+
+	private final boolean driveForwards;
+	private final Curve[] curves;
+	/**
+	 * Arc length of the path at the start of each segment
+	 */
+	private final double[] segmentStart;
+
+	// pieces, by index
+	private final int[] pieceSegment;
+	private final double[] pieceT0;
+	private final double[] pieceT1;
+	// ends of each piece, for guessing where on it a query is closest
+	private final double[] pieceAX;
+	private final double[] pieceAY;
+	private final double[] pieceBX;
+	private final double[] pieceBY;
+
+	// bounding box hierarchy, by node. Node 0 is the root
+	private final double[] minX;
+	private final double[] minY;
+	private final double[] maxX;
+	private final double[] maxY;
+	/**
+	 * index of the first child, or -(piece + 1) for leaves
+	 */
+	private final int[] nodeLeft;
+	private final int[] nodeRight;
+	private final int depth;
+
+	public PathLocator(Path path) {
+		this(path, DEFAULT_FLATNESS);
+	}
+
+	/**
+	 * @param path
+	 *            path to search. Curves that don't have an arc length table yet
+	 *            get one
+	 * @param flatness
+	 *            how far, in inches, a piece's control points can be from the line
+	 *            between its ends. Smaller makes more pieces, which makes queries a
+	 *            little slower but the initial guess on each piece better
+	 */
+	public PathLocator(Path path, double flatness) {
+		if (!(flatness > 0))
+			throw new IllegalArgumentException("flatness must be positive: " + flatness);
+		PathSegment[] segments = path.getSegments();
+		if (segments.length == 0)
+			throw new IllegalArgumentException("path has no segments");
+		driveForwards = path.driveForwards;
+		curves = new Curve[segments.length];
+		segmentStart = new double[segments.length];
+		ArrayList<double[]> pieces = new ArrayList<>();
+		double length = 0;
+		for (int i = 0; i < segments.length; i++) {
+			Curve curve = segments[i].curve;
+			curves[i] = curve;
+			segmentStart[i] = length;
+			length += curve.getTotalArcLength();
+			if (curve instanceof BezierCurve) {
+				BezierCurve bezier = (BezierCurve) curve;
+				split(i, bezier.controlPointsX.clone(), bezier.controlPointsY.clone(), 0, 1, flatness, 0, pieces);
+			} else if (curve instanceof LineSegment) {
+				LineSegment line = (LineSegment) curve;
+				split(i, new double[] { line.start.x, line.end.x }, new double[] { line.start.y, line.end.y }, 0, 1,
+						flatness, 0, pieces);
+			} else {
+				throw new IllegalArgumentException("can't locate points on " + curve.getClass().getSimpleName());
+			}
+		}
+
+		int count = pieces.size();
+		pieceSegment = new int[count];
+		pieceT0 = new double[count];
+		pieceT1 = new double[count];
+		pieceAX = new double[count];
+		pieceAY = new double[count];
+		pieceBX = new double[count];
+		pieceBY = new double[count];
+		double[] boxes = new double[4 * count];
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			double[] p = pieces.get(i);
+			pieceSegment[i] = (int) p[0];
+			pieceT0[i] = p[1];
+			pieceT1[i] = p[2];
+			pieceAX[i] = p[3];
+			pieceAY[i] = p[4];
+			pieceBX[i] = p[5];
+			pieceBY[i] = p[6];
+			System.arraycopy(p, 7, boxes, 4 * i, 4);
+			order[i] = i;
+		}
+
+		int nodes = 2 * count - 1;
+		minX = new double[nodes];
+		minY = new double[nodes];
+		maxX = new double[nodes];
+		maxY = new double[nodes];
+		nodeLeft = new int[nodes];
+		nodeRight = new int[nodes];
+		int[] result = new int[2];
+		build(boxes, order, 0, count, 0, 0, result);
+		depth = result[1];
+	}
+
+	/**
+	 * Splits a curve in half until each piece is flat enough, and adds the pieces
+	 * in order. Each piece is {segment, t0, t1, ax, ay, bx, by, minX, minY, maxX,
+	 * maxY}.
+	 */
+	private static void split(int segment, double[] px, double[] py, double t0, double t1, double flatness,
+			int depth, ArrayList<double[]> pieces) {
+		int n = px.length - 1;
+		if (depth >= MAX_SPLIT_DEPTH || BezierCurve.flatness(px, py) <= flatness) {
+			double[] piece = { segment, t0, t1, px[0], py[0], px[n], py[n], px[0], py[0], px[0], py[0] };
+			for (int i = 1; i <= n; i++) {
+				piece[7] = Math.min(piece[7], px[i]);
+				piece[8] = Math.min(piece[8], py[i]);
+				piece[9] = Math.max(piece[9], px[i]);
+				piece[10] = Math.max(piece[10], py[i]);
+			}
+			pieces.add(piece);
+			return;
+		}
+		double[] firstX = new double[n + 1];
+		double[] firstY = new double[n + 1];
+		BezierCurve.splitInHalf(px, py, firstX, firstY);
+		double mid = (t0 + t1) / 2;
+		split(segment, firstX, firstY, t0, mid, flatness, depth + 1, pieces);
+		split(segment, px, py, mid, t1, flatness, depth + 1, pieces);
+	}
+
+	/**
+	 * Builds the subtree for order[from, to) at node, splitting the pieces at the
+	 * median of the longer side of their bounding box
+	 *
+	 * @param result
+	 *            gets the next free node in [0] and the deepest depth so far in [1]
+	 */
+	private void build(double[] boxes, int[] order, int from, int to, int node, int nodeDepth, int[] result) {
+		double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY;
+		double x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			int b = 4 * order[i];
+			x0 = Math.min(x0, boxes[b]);
+			y0 = Math.min(y0, boxes[b + 1]);
+			x1 = Math.max(x1, boxes[b + 2]);
+			y1 = Math.max(y1, boxes[b + 3]);
+		}
+		minX[node] = x0;
+		minY[node] = y0;
+		maxX[node] = x1;
+		maxY[node] = y1;
+		result[0] = node + 1;
+		result[1] = Math.max(result[1], nodeDepth);
+		if (to - from == 1) {
+			nodeLeft[node] = -(order[from] + 1);
+			return;
+		}
+
+		int axis = x1 - x0 >= y1 - y0 ? 0 : 1;
+		int mid = (from + to) >>> 1;
+		selectMedian(boxes, order, from, to, mid, axis);
+		nodeLeft[node] = node + 1;
+		build(boxes, order, from, mid, node + 1, nodeDepth + 1, result);
+		nodeRight[node] = result[0];
+		build(boxes, order, mid, to, result[0], nodeDepth + 1, result);
+	}
+
+	/**
+	 * Partially sorts order[from, to) by box center on axis, so that index k has
+	 * the piece that would be there if it were fully sorted
+	 */
+	private static void selectMedian(double[] boxes, int[] order, int from, int to, int k, int axis) {
+		int lo = from, hi = to - 1;
+		while (lo < hi) {
+			double pivot = center(boxes, order[(lo + hi) >>> 1], axis);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (center(boxes, order[i], axis) < pivot)
+					i++;
+				while (center(boxes, order[j], axis) > pivot)
+					j--;
+				if (i <= j) {
+					int swap = order[i];
+					order[i] = order[j];
+					order[j] = swap;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				hi = j;
+			} else if (k >= i) {
+				lo = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static double center(double[] boxes, int piece, int axis) {
+		return boxes[4 * piece + axis] + boxes[4 * piece + axis + 2];
+	}
+
+	/**
+	 * @return total arc length of the path
+	 */
+	public double getTotalArcLength() {
+		int last = curves.length - 1;
+		return segmentStart[last] + curves[last].getTotalArcLength();
+	}
+
+	/**
+	 * @return number of nearly straight pieces the path was split into
+	 */
+	public int getPieceCount() {
+		return pieceSegment.length;
+	}
+
+	/**
+	 * Finds the point on the path closest to (x, y). Allocates a new Result, so
+	 * use {@link #locate(double, double, double, Result)} every cycle instead
+	 */
+	public Result locate(double x, double y, double heading) {
+		return locate(x, y, heading, new Result());
+	}
+
+	/**
+	 * Finds the point on the path closest to (x, y)
+	 *
+	 * @param heading
+	 *            heading of the robot, see {@link math.Vector#getHeading()}. Only
+	 *            used for {@link Result#headingError}
+	 * @param out
+	 *            gets the result. If it holds the result of an earlier query on
+	 *            this locator, the search starts from there
+	 * @return out
+	 */
+	public Result locate(double x, double y, double heading, Result out) {
+		if (out.stack == null || out.stack.length < depth + 2) {
+			out.stack = new int[depth + 2];
+		}
+		int[] stack = out.stack;
+		double[] scratch = out.scratch;
+		double[] best = out.best;
+
+		// closest point on last query's piece, so most boxes can be skipped right away
+		int bestPiece = -1;
+		double bestDistance2 = Double.POSITIVE_INFINITY;
+		if (out.piece >= 0 && out.piece < pieceSegment.length) {
+			bestDistance2 = closestOnPiece(out.piece, x, y, scratch);
+			bestPiece = out.piece;
+			System.arraycopy(scratch, 0, best, 0, best.length);
+		}
+
+		int size = 0;
+		stack[size++] = 0;
+		while (size > 0) {
+			int node = stack[--size];
+			if (boxDistance2(node, x, y) >= bestDistance2)
+				continue;
+			int left = nodeLeft[node];
+			if (left < 0) {
+				int piece = -left - 1;
+				if (piece != bestPiece) {
+					double distance2 = closestOnPiece(piece, x, y, scratch);
+					if (distance2 < bestDistance2) {
+						bestDistance2 = distance2;
+						bestPiece = piece;
+						System.arraycopy(scratch, 0, best, 0, best.length);
+					}
+				}
+				continue;
+			}
+			// push the further child first so the nearer one is searched first
+			int right = nodeRight[node];
+			if (boxDistance2(left, x, y) <= boxDistance2(right, x, y)) {
+				stack[size++] = right;
+				stack[size++] = left;
+			} else {
+				stack[size++] = left;
+				stack[size++] = right;
+			}
+		}
+
+		fill(bestPiece, x, y, heading, out);
+		return out;
+	}
+
+	private double boxDistance2(int node, double x, double y) {
+		double dx = Math.max(Math.max(minX[node] - x, x - maxX[node]), 0);
+		double dy = Math.max(Math.max(minY[node] - y, y - maxY[node]), 0);
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Finds the closest point on one piece. Starts from where (x, y) projects onto
+	 * the line between the piece's ends, then takes Newton steps on the derivative
+	 * of the squared distance, staying on the piece
+	 *
+	 * @param out
+	 *            gets t in [0] and x, y, dx/dt, dy/dt in [1] to [4]
+	 * @return squared distance from (x, y) to the closest point
+	 */
+	private double closestOnPiece(int piece, double x, double y, double[] out) {
+		double ax = pieceAX[piece], ay = pieceAY[piece];
+		double cx = pieceBX[piece] - ax, cy = pieceBY[piece] - ay;
+		double chord2 = cx * cx + cy * cy;
+		double u = chord2 == 0 ? 0 : Util.limit(((x - ax) * cx + (y - ay) * cy) / chord2, 0, 1);
+		double t0 = pieceT0[piece], t1 = pieceT1[piece];
+		double t = t0 + u * (t1 - t0);
+
+		Curve curve = curves[pieceSegment[piece]];
+		if (curve instanceof LineSegment) {
+			// pieces of lines are the whole line, so the projection is exact
+			LineSegment line = (LineSegment) curve;
+			out[0] = t;
+			out[1] = line.start.x + t * (line.end.x - line.start.x);
+			out[2] = line.start.y + t * (line.end.y - line.start.y);
+			out[3] = line.end.x - line.start.x;
+			out[4] = line.end.y - line.start.y;
+		} else {
+			BezierCurve bezier = (BezierCurve) curve;
+			BezierCurve d1 = bezier.derivative();
+			BezierCurve d2 = d1.derivative();
+			for (int i = 0; i < NEWTON_STEPS; i++) {
+				double ex = bezier.getX(t) - x, ey = bezier.getY(t) - y;
+				double dx = d1.getX(t), dy = d1.getY(t);
+				double gradient = ex * dx + ey * dy;
+				double hessian = dx * dx + dy * dy;
+				if (d2 != null) {
+					// near a local maximum the curvature term would make Newton go
+					// uphill, so don't let it make the step negative
+					hessian = Math.max(hessian + ex * d2.getX(t) + ey * d2.getY(t), hessian * 1.0e-3);
+				}
+				if (hessian == 0)
+					break;
+				double next = Util.limit(t - gradient / hessian, t0, t1);
+				boolean done = Math.abs(next - t) < NEWTON_TOLERANCE;
+				t = next;
+				if (done)
+					break;
+			}
+			out[0] = t;
+			out[1] = bezier.getX(t);
+			out[2] = bezier.getY(t);
+			out[3] = d1.getX(t);
+			out[4] = d1.getY(t);
+		}
+		double ex = out[1] - x, ey = out[2] - y;
+		return ex * ex + ey * ey;
+	}
+
+	/**
+	 * Fills in out from the closest point, which is in out.best
+	 */
+	private void fill(int piece, double x, double y, double heading, Result out) {
+		double[] point = out.best;
+		double t = point[0];
+		int segment = pieceSegment[piece];
+		Curve curve = curves[segment];
+		out.piece = piece;
+		out.segment = segment;
+		out.t = t;
+		out.arcLength = segmentStart[segment] + (curve instanceof BezierCurve
+				? ((BezierCurve) curve).getArcLength(t) : t * curve.getTotalArcLength());
+		out.x = point[1];
+		out.y = point[2];
+
+		double dx = point[3], dy = point[4];
+		double speed = Math.sqrt(dx * dx + dy * dy);
+		double ex = x - out.x, ey = y - out.y;
+		double distance = Math.sqrt(ex * ex + ey * ey);
+		double cross = dx * ey - dy * ex;
+		out.crossTrackError = cross < 0 ? -distance : distance;
+		if (speed == 0) {
+			// only at cusps; the heading there is the heading of the chord
+			dx = pieceBX[piece] - pieceAX[piece];
+			dy = pieceBY[piece] - pieceAY[piece];
+		}
+		double pathHeading = -Math.atan2(dy, dx) + Math.PI / 2;
+		if (!driveForwards) {
+			pathHeading += Math.PI;
+		}
+		out.pathHeading = boundAngle(pathHeading);
+		out.headingError = boundAngle(heading - pathHeading);
+	}
+
+	/**
+	 * @return angle moved into [-pi, pi)
+	 */
+	private static double boundAngle(double angle) {
+		return angle - 2 * Math.PI * Math.floor((angle + Math.PI) / (2 * Math.PI));
+	}
+
+}
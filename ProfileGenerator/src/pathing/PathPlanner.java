@@ -0,0 +1,213 @@
+package pathing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import math.Timer;
+import motion.MotionProfileConstraints;
+import pathing.Path.TrajectoryHolder;
+
+/**
+ * Makes many paths at once. Each {@link Request} becomes its own task on an
+ * executor, which builds the path, generates its profile and samples its
+ * trajectory. Paths don't share anything, so they can all run at the same time.
+ *
+ * <pre>
+ * PathPlanner planner = new PathPlanner();
+ * List&lt;Result&gt; results = planner.planAll(requests);
+ * </pre>
+ */
+public class PathPlanner {
+
+	private final Executor executor;
+
+	/**
+	 * Makes a planner that runs on the common fork-join pool
+	 */
+	public PathPlanner() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param executor
+	 *            runs one task per path
+	 */
+	public PathPlanner(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Everything needed to make one path and its trajectory
+	 */
+	public static class Request {
+		public final String name;
+		public final Waypoint[] waypoints;
+		public final double[] midControlPercents;
+		public final boolean driveForwards;
+		public final MotionProfileConstraints constraints;
+		public final double robotWidth;
+		public final double pointDurationSec;
+
+		/**
+		 * Uses a mid control percent of 0.5 for every segment, the same as
+		 * {@link Path#addWaypoint(Waypoint)}
+		 */
+		public Request(String name, Waypoint[] waypoints, boolean driveForwards,
+				MotionProfileConstraints constraints, double robotWidth, double pointDurationSec) {
+			this(name, waypoints, null, driveForwards, constraints, robotWidth, pointDurationSec);
+		}
+
+		/**
+		 *
+		 * @param name
+		 *            identifies the path in results
+		 * @param waypoints
+		 *            at least 2 waypoints, the first is where the path starts
+		 * @param midControlPercents
+		 *            mid control percent for the segment ending at each waypoint
+		 *            after the first (see {@link Path#addWaypoint(Waypoint, double)}),
+		 *            so one less than the number of waypoints. Null to use 0.5
+		 *            everywhere
+		 * @param driveForwards
+		 *            if the robot drives forwards or backwards
+		 * @param constraints
+		 *            max velocity and acceleration of the profile
+		 * @param robotWidth
+		 *            distance between the wheels, used to make the trajectory
+		 * @param pointDurationSec
+		 *            time between trajectory points
+		 */
+		public Request(String name, Waypoint[] waypoints, double[] midControlPercents, boolean driveForwards,
+				MotionProfileConstraints constraints, double robotWidth, double pointDurationSec) {
+			if (waypoints.length < 2)
+				throw new IllegalArgumentException("a path needs at least 2 waypoints: " + name);
+			if (midControlPercents != null && midControlPercents.length != waypoints.length - 1)
+				throw new IllegalArgumentException(
+						"need one mid control percent per segment, got " + midControlPercents.length + ": " + name);
+			this.name = name;
+			this.waypoints = waypoints.clone();
+			this.midControlPercents = midControlPercents == null ? null : midControlPercents.clone();
+			this.driveForwards = driveForwards;
+			this.constraints = constraints;
+			this.robotWidth = robotWidth;
+			this.pointDurationSec = pointDurationSec;
+		}
+
+		/**
+		 * @return a new path through the waypoints, without a profile
+		 */
+		public Path makePath() {
+			Path path = new Path(waypoints[0], driveForwards);
+			for (int i = 1; i < waypoints.length; i++) {
+				path.addWaypoint(waypoints[i], midControlPercents == null ? 0.5 : midControlPercents[i - 1]);
+			}
+			return path;
+		}
+	}
+
+	/**
+	 * A finished path, along with how long each step took to make it
+	 */
+	public static class Result {
+		public final Request request;
+		public final Path path;
+		public final TrajectoryHolder trajectory;
+		/**
+		 * milliseconds spent making the curves
+		 */
+		public final double pathMs;
+		/**
+		 * milliseconds spent building tables and generating the profile
+		 */
+		public final double profileMs;
+		/**
+		 * milliseconds spent making the trajectory
+		 */
+		public final double trajectoryMs;
+
+		public Result(Request request, Path path, TrajectoryHolder trajectory, double pathMs, double profileMs,
+				double trajectoryMs) {
+			this.request = request;
+			this.path = path;
+			this.trajectory = trajectory;
+			this.pathMs = pathMs;
+			this.profileMs = profileMs;
+			this.trajectoryMs = trajectoryMs;
+		}
+
+		public double totalMs() {
+			return pathMs + profileMs + trajectoryMs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %.3f ms (path %.3f, profile %.3f, trajectory %.3f)", request.name, totalMs(),
+					pathMs, profileMs, trajectoryMs);
+		}
+	}
+
+	/**
+	 * Makes one path on the calling thread
+	 *
+	 * @throws IllegalArgumentException
+	 *             if any of the waypoints couldn't be connected with a curve
+	 */
+	public static Result plan(Request request) {
+		Timer timer = new Timer();
+		Path path = request.makePath();
+		if (path.getSegments().length != request.waypoints.length - 1)
+			throw new IllegalArgumentException("some waypoints could not be connected: " + request.name);
+		double pathMs = timer.elapsed();
+
+		timer.reset();
+		path.generateProfile(request.constraints);
+		double profileMs = timer.elapsed();
+
+		timer.reset();
+		TrajectoryHolder trajectory = path.getTrajectoryPoints(request.robotWidth, request.pointDurationSec);
+		double trajectoryMs = timer.elapsed();
+		return new Result(request, path, trajectory, pathMs, profileMs, trajectoryMs);
+	}
+
+	/**
+	 * Starts making one path on the executor
+	 */
+	public CompletableFuture<Result> submit(Request request) {
+		return CompletableFuture.supplyAsync(() -> plan(request), executor);
+	}
+
+	/**
+	 * Starts making every path on the executor
+	 *
+	 * @return completes with the results in the same order as requests, or
+	 *         exceptionally if any path failed
+	 */
+	public CompletableFuture<List<Result>> submitAll(List<Request> requests) {
+		List<CompletableFuture<Result>> futures = new ArrayList<>(requests.size());
+		for (Request request : requests) {
+			futures.add(submit(request));
+		}
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+			List<Result> results = new ArrayList<>(futures.size());
+			for (CompletableFuture<Result> future : futures) {
+				results.add(future.join());
+			}
+			return results;
+		});
+	}
+
+	/**
+	 * Makes every path and waits for all of them
+	 *
+	 * @return results in the same order as requests
+	 * @throws java.util.concurrent.CompletionException
+	 *             if any path failed, caused by what it threw
+	 */
+	public List<Result> planAll(List<Request> requests) {
+		return submitAll(requests).join();
+	}
+
+}
@@ -0,0 +1,203 @@
+package pathing;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import math.BezierCurve;
+import math.Timer;
+import motion.MotionProfile;
+import motion.MotionProfileConstraints;
+import motion.MotionState;
+
+/**
+ * Replaces the path the robot is following with a new one from wherever it is,
+ * so an auto that gets bumped can carry on instead of aborting.
+ *
+ * The control thread only ever calls {@link #current()} and follows whatever
+ * {@link Plan} it gets, using {@link Plan#startTime} to line the plan's profile
+ * up with its own clock. Replanning happens on any other thread: it makes a new
+ * plan off to the side, then swaps it in with a single compare-and-set, so the
+ * control thread never waits on a lock or sees half of a plan.
+ *
+ * <pre>
+ * // control thread, every cycle
+ * Plan plan = replanner.current();
+ * MotionState setpoint = plan.profile.stateByTimeClamped(time - plan.startTime);
+ *
+ * // any other thread, after a bump
+ * replanner.replan(robotPose, robotState);
+ * </pre>
+ *
+ * Replanning is kept fast by only making the one segment from the robot back
+ * onto the old path, sharing every other segment and its table with the old
+ * plan (see {@link Path#replanFrom(Waypoint, int)}). The new segment's table
+ * is built coarse, with Newton steps making up the accuracy, since a small
+ * table is much cheaper to build.
+ */
+public class Replanner {
+
+	public static final double DEFAULT_BUDGET_MS = 5;
+	/**
+	 * Table tolerance, in inches, of the segment made by a replan
+	 */
+	public static final double COARSE_TABLE_TOLERANCE = 0.1;
+	/**
+	 * Newton steps that refine lookups in the coarse table
+	 */
+	public static final int REFINE_NEWTON_STEPS = 2;
+
+	/**
+	 * Everything the control thread needs to follow one path. Nothing in a plan
+	 * changes after it's published.
+	 */
+	public static class Plan {
+		public final Path path;
+		/**
+		 * profile of path, starting at time 0
+		 */
+		public final MotionProfile profile;
+		public final ColumnarTrajectory trajectory;
+		/**
+		 * time the plan starts, on the clock of the first plan. Sample the
+		 * profile and trajectory at (time - startTime)
+		 */
+		public final double startTime;
+		/**
+		 * 0 for the first plan, and one more for each replan after it
+		 */
+		public final int generation;
+		/**
+		 * milliseconds it took to make this plan
+		 */
+		public final double planMs;
+		private final PathLocator locator;
+
+		private Plan(Path path, ColumnarTrajectory trajectory, double startTime, int generation, double planMs) {
+			this.path = path;
+			this.profile = path.getProfile();
+			this.trajectory = trajectory;
+			this.startTime = startTime;
+			this.generation = generation;
+			this.planMs = planMs;
+			this.locator = new PathLocator(path);
+		}
+
+		/**
+		 * @return time the plan ends, on the clock of the first plan
+		 */
+		public double endTime() {
+			return startTime + profile.duration();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("plan %d: starts at %.3f s, %d waypoints, %.3f s long, made in %.3f ms", generation,
+					startTime, path.getWaypointCount(), profile.duration(), planMs);
+		}
+	}
+
+	private final AtomicReference<Plan> current = new AtomicReference<>();
+	private final MotionProfileConstraints constraints;
+	private final double robotWidth;
+	private final double pointDurationSec;
+	private final double budgetMs;
+
+	/**
+	 * Uses a budget of {@link #DEFAULT_BUDGET_MS}
+	 */
+	public Replanner(Path path, MotionProfileConstraints constraints, double robotWidth, double pointDurationSec) {
+		this(path, constraints, robotWidth, pointDurationSec, DEFAULT_BUDGET_MS);
+	}
+
+	/**
+	 * Makes the first plan from path, which starts at time 0. There's no budget
+	 * for it, so do this before the robot starts moving.
+	 *
+	 * @param path
+	 *            path to follow. The replanner takes it over, so don't change it
+	 *            afterwards
+	 * @param constraints
+	 *            max velocity and acceleration of every plan
+	 * @param robotWidth
+	 *            distance between the wheels, used to make the trajectories
+	 * @param pointDurationSec
+	 *            time between trajectory points
+	 * @param budgetMs
+	 *            longest a replan can take, in milliseconds. Plans that take
+	 *            longer are thrown away instead of published, since the robot has
+	 *            moved too far from where they start
+	 */
+	public Replanner(Path path, MotionProfileConstraints constraints, double robotWidth, double pointDurationSec,
+			double budgetMs) {
+		this.constraints = constraints;
+		this.robotWidth = robotWidth;
+		this.pointDurationSec = pointDurationSec;
+		this.budgetMs = budgetMs;
+		Timer timer = new Timer();
+		path.generateProfile(constraints);
+		ColumnarTrajectory trajectory = path.getColumnarTrajectory(robotWidth, pointDurationSec);
+		current.set(new Plan(path, trajectory, 0, 0, timer.elapsed()));
+	}
+
+	/**
+	 * @return the newest plan. Never blocks, so it's safe to call from the
+	 *         control loop
+	 */
+	public Plan current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes a new plan from the robot's pose back onto the current plan's path,
+	 * and publishes it if nothing else was published in the meantime. The new
+	 * path rejoins at the first waypoint ahead of the robot that it can be
+	 * connected to.
+	 *
+	 * @param pose
+	 *            where the robot is, pointed the way the path is driven
+	 * @param state
+	 *            the robot's motion, with t on the clock of the first plan. Its
+	 *            velocity and acceleration become the start of the new profile.
+	 *            The new plan starts at state.t(), so if the robot keeps moving
+	 *            while this runs, the control thread just picks the new plan up a
+	 *            few milliseconds in
+	 * @return the published plan, or null if it went over the budget, another
+	 *         replan was published first, or the robot is past the last
+	 *         waypoint it could connect to
+	 */
+	public Plan replan(Waypoint pose, MotionState state) {
+		Timer timer = new Timer();
+		Plan base = current.get();
+		Path old = base.path;
+		// rejoin after the segment the robot is closest to
+		int next = base.locator.locate(pose.position.x, pose.position.y, pose.heading.getHeading()).segment + 1;
+		Path path = null;
+		for (; next < old.getWaypointCount() && path == null; next++) {
+			try {
+				path = old.replanFrom(pose, next);
+			} catch (IllegalArgumentException e) {
+				// can't get to this waypoint from here, try the one after it
+			}
+		}
+		if (path == null) {
+			return null;
+		}
+
+		PathSegment first = path.getSegments()[0];
+		if (first.curve instanceof BezierCurve) {
+			BezierCurve curve = (BezierCurve) first.curve;
+			curve.setTableTolerance(COARSE_TABLE_TOLERANCE);
+			curve.setNewtonSteps(REFINE_NEWTON_STEPS);
+		}
+		path.generateProfile(constraints, state);
+		if (timer.elapsed() > budgetMs) {
+			return null;
+		}
+		ColumnarTrajectory trajectory = path.getColumnarTrajectory(robotWidth, pointDurationSec);
+		Plan plan = new Plan(path, trajectory, state.t(), base.generation + 1, timer.elapsed());
+		if (plan.planMs > budgetMs || !current.compareAndSet(base, plan)) {
+			return null;
+		}
+		return plan;
+	}
+
+}
@@ -0,0 +1,178 @@
+package pathing;
+
+import java.awt.geom.Rectangle2D;
+import java.util.stream.IntStream;
+
+/**
+ * Distance from any point in an area to the nearest obstacle, looked up from a
+ * precomputed grid so that each query costs the same no matter how many
+ * obstacles there are. Distances are positive outside obstacles and negative
+ * inside them. Everything outside the area counts as an obstacle, so near the
+ * edges this is the distance to the edge, and outside the area it's negative.
+ *
+ * The exact distance is computed at every grid point when the field is made,
+ * and queries interpolate bilinearly between the four grid points around them.
+ * That's exact wherever the nearest thing is a straight edge, and off by up to
+ * about half a cell near corners and where two things are equally close.
+ *
+ * Fields can't be changed after they're made, so one field can be shared by
+ * any number of threads.
+ */
+public final class SignedDistanceField {
+
+	private final double minX;
+	private final double minY;
+	private final double maxX;
+	private final double maxY;
+	private final double cellSize;
+	private final int columns;
+	private final int rows;
+	/**
+	 * distance at each grid point, row by row. Floats, since they're accurate far
+	 * past a fraction of a cell, and half the size keeps more of the grid in cache
+	 */
+	private final float[] distances;
+
+	/**
+	 * @param area
+	 *            area the field covers. Queries outside the grid get the distance
+	 *            at its edge minus how far outside they are, so they're negative
+	 *            like everything else outside the area
+	 * @param cellSize
+	 *            distance between grid points, in inches
+	 * @param obstacles
+	 *            areas to measure the distance to
+	 */
+	public SignedDistanceField(Rectangle2D area, double cellSize, Rectangle2D... obstacles) {
+		if (!(cellSize > 0))
+			throw new IllegalArgumentException("cell size must be positive: " + cellSize);
+		if (area.isEmpty())
+			throw new IllegalArgumentException("area is empty: " + area);
+		this.minX = area.getMinX();
+		this.minY = area.getMinY();
+		this.cellSize = cellSize;
+		// round up, so the grid covers the whole area
+		this.columns = (int) Math.ceil(area.getWidth() / cellSize) + 1;
+		this.rows = (int) Math.ceil(area.getHeight() / cellSize) + 1;
+		this.maxX = minX + (columns - 1) * cellSize;
+		this.maxY = minY + (rows - 1) * cellSize;
+		this.distances = new float[columns * rows];
+
+		Rectangle2D[] rectangles = obstacles.clone();
+		double areaMaxX = area.getMaxX();
+		double areaMaxY = area.getMaxY();
+		// every row is independent, so compute them all at once
+		IntStream.range(0, rows).parallel().forEach(row -> {
+			double y = minY + row * cellSize;
+			for (int column = 0; column < columns; column++) {
+				double x = minX + column * cellSize;
+				double distance = Math.min(Math.min(x - minX, areaMaxX - x), Math.min(y - minY, areaMaxY - y));
+				for (Rectangle2D rectangle : rectangles) {
+					distance = Math.min(distance, distance(rectangle, x, y));
+				}
+				distances[row * columns + column] = (float) distance;
+			}
+		});
+	}
+
+	/**
+	 * @return signed distance from (x, y) to rectangle, negative inside it
+	 */
+	private static double distance(Rectangle2D rectangle, double x, double y) {
+		double dx = Math.abs(x - rectangle.getCenterX()) - rectangle.getWidth() / 2;
+		double dy = Math.abs(y - rectangle.getCenterY()) - rectangle.getHeight() / 2;
+		if (dx <= 0 && dy <= 0) {
+			return Math.max(dx, dy);
+		}
+		double outsideX = Math.max(dx, 0);
+		double outsideY = Math.max(dy, 0);
+		return Math.sqrt(outsideX * outsideX + outsideY * outsideY);
+	}
+
+	/**
+	 * @return distance from (x, y) to the nearest obstacle or edge of the area,
+	 *         negative if it's inside an obstacle or outside the area
+	 */
+	public double distance(double x, double y) {
+		double cx = Math.min(Math.max(x, minX), maxX);
+		double cy = Math.min(Math.max(y, minY), maxY);
+		double gx = (cx - minX) / cellSize;
+		double gy = (cy - minY) / cellSize;
+		int column = Math.min((int) gx, columns - 2);
+		int row = Math.min((int) gy, rows - 2);
+		double u = gx - column;
+		double v = gy - row;
+		int i = row * columns + column;
+		double d00 = distances[i], d10 = distances[i + 1];
+		double d01 = distances[i + columns], d11 = distances[i + columns + 1];
+		double bottom = d00 + (d10 - d00) * u;
+		double top = d01 + (d11 - d01) * u;
+		// the grid stops at its edge, so add on how far past it the point is
+		return bottom + (top - bottom) * v - Math.hypot(x - cx, y - cy);
+	}
+
+	/**
+	 * Finds the direction that increases the distance the fastest, which points
+	 * away from the nearest obstacle, without allocating anything
+	 *
+	 * @param out
+	 *            gets the derivative of {@link #distance(double, double)} with
+	 *            respect to x in out[0] and y in out[1]
+	 * @return the distance at (x, y)
+	 */
+	public double gradient(double x, double y, double[] out) {
+		double cx = Math.min(Math.max(x, minX), maxX);
+		double cy = Math.min(Math.max(y, minY), maxY);
+		double gx = (cx - minX) / cellSize;
+		double gy = (cy - minY) / cellSize;
+		int column = Math.min((int) gx, columns - 2);
+		int row = Math.min((int) gy, rows - 2);
+		double u = gx - column;
+		double v = gy - row;
+		int i = row * columns + column;
+		double d00 = distances[i], d10 = distances[i + 1];
+		double d01 = distances[i + columns], d11 = distances[i + columns + 1];
+		out[0] = ((d10 - d00) * (1 - v) + (d11 - d01) * v) / cellSize;
+		out[1] = ((d01 - d00) * (1 - u) + (d11 - d10) * u) / cellSize;
+		double bottom = d00 + (d10 - d00) * u;
+		double top = d01 + (d11 - d01) * u;
+		double distance = bottom + (top - bottom) * v;
+
+		// past the edge of the grid, the lookup stops changing along that axis and
+		// the distance falls off with how far outside the point is, pointing back in
+		double outsideX = x - cx;
+		double outsideY = y - cy;
+		if (outsideX != 0 || outsideY != 0) {
+			double outside = Math.hypot(outsideX, outsideY);
+			out[0] = (outsideX != 0 ? 0 : out[0]) - outsideX / outside;
+			out[1] = (outsideY != 0 ? 0 : out[1]) - outsideY / outside;
+			distance -= outside;
+		}
+		return distance;
+	}
+
+	/**
+	 * @return smallest distance at any of the points, so the clearance of a
+	 *         sampled path. Infinity if there are no points
+	 */
+	public double minDistance(double[] x, double[] y, int from, int to) {
+		double result = Double.POSITIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			result = Math.min(result, distance(x[i], y[i]));
+		}
+		return result;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+}
@@ -0,0 +1,276 @@
+package pathing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pathing.Path.TrajectoryHolder;
+
+/**
+ * Binary file holding a trajectory, so it can be generated ahead of time and
+ * loaded on the robot without running any of the path code.
+ *
+ * Files are read with {@link #map(File)}, which memory maps the file and reads
+ * points straight out of it. Nothing gets parsed or copied when the file is
+ * opened, so opening is close to free no matter how long the trajectory is.
+ *
+ * Layout, all little endian:
+ *
+ * <pre>
+ * int    magic ("TRAJ")
+ * int    version
+ * int    offset of the first channel, in bytes
+ * int    number of points
+ * double duration of each point, in seconds
+ * int    number of metadata entries, then for each one
+ *        int length + UTF-8 bytes of the key, then the same for the value
+ * padding to a multiple of 8 bytes
+ * double channels, each one value for every point in order:
+ *        left x, y, position, velocity, acceleration, then the same for right
+ * </pre>
+ */
+public final class TrajectoryFile {
+
+	public static final int MAGIC = 0x4A415254; // "TRAJ" when read as little endian bytes
+	public static final int VERSION = 1;
+	private static final int CHANNELS_PER_SIDE = 5;
+
+	private final int length;
+	private final double pointDurationSec;
+	private final Map<String, String> metadata;
+	public final Side left;
+	public final Side right;
+
+	private TrajectoryFile(ByteBuffer buffer) throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < 28 || buffer.getInt() != MAGIC)
+			throw new IOException("not a trajectory file");
+		int version = buffer.getInt();
+		if (version != VERSION)
+			throw new IOException("unsupported trajectory file version " + version);
+		int dataOffset = buffer.getInt();
+		length = buffer.getInt();
+		pointDurationSec = buffer.getDouble();
+		int entries = buffer.getInt();
+		Map<String, String> metadata = new LinkedHashMap<>();
+		for (int i = 0; i < entries; i++) {
+			metadata.put(readString(buffer), readString(buffer));
+		}
+		this.metadata = Collections.unmodifiableMap(metadata);
+		// the channels have to start after the header, on a double, and fit in the
+		// file, or slicing them out would throw something other than an IOException
+		if (dataOffset < buffer.position() || dataOffset % Double.BYTES != 0)
+			throw new IOException("trajectory file header is corrupt, channels start at " + dataOffset);
+		if (length < 0)
+			throw new IOException("trajectory file header is corrupt, " + length + " points");
+		if ((long) dataOffset + 2L * CHANNELS_PER_SIDE * length * Double.BYTES > buffer.capacity())
+			throw new IOException("trajectory file is truncated");
+
+		DoubleBuffer[] channels = new DoubleBuffer[2 * CHANNELS_PER_SIDE];
+		for (int i = 0; i < channels.length; i++) {
+			buffer.limit(dataOffset + (i + 1) * length * Double.BYTES);
+			buffer.position(dataOffset + i * length * Double.BYTES);
+			channels[i] = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		}
+		left = new Side(channels, 0);
+		right = new Side(channels, CHANNELS_PER_SIDE);
+	}
+
+	/**
+	 * Memory maps a trajectory file. The mapping stays valid after this returns
+	 * and is released when the returned object gets garbage collected. Only the
+	 * header is read here, points are read from the mapping as they're asked for.
+	 *
+	 * @throws IOException
+	 *             if the file can't be read or isn't a trajectory file of this
+	 *             version
+	 */
+	public static TrajectoryFile map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("trajectory file is too big to map: " + channel.size() + " bytes");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new TrajectoryFile(buffer);
+		}
+	}
+
+	/**
+	 * Same as {@link #write(File, ColumnarTrajectory, Map)}, for code that still
+	 * uses TrajectoryPoints
+	 */
+	public static void write(File file, TrajectoryHolder trajectory, Map<String, String> metadata)
+			throws IOException {
+		write(file, ColumnarTrajectory.of(trajectory), metadata);
+	}
+
+	/**
+	 * Writes a trajectory, replacing the file if it exists
+	 *
+	 * @param trajectory
+	 *            trajectory to write. The point duration is taken from the left
+	 *            side
+	 * @param metadata
+	 *            anything to store along with the trajectory, like the name of the
+	 *            routine or the settings it was made with. May be null
+	 */
+	public static void write(File file, ColumnarTrajectory trajectory, Map<String, String> metadata)
+			throws IOException {
+		if (metadata == null) {
+			metadata = Collections.emptyMap();
+		}
+		int headerSize = 28;
+		for (Map.Entry<String, String> entry : metadata.entrySet()) {
+			headerSize += 8 + utf8(entry.getKey()).length + utf8(entry.getValue()).length;
+		}
+		int dataOffset = (headerSize + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+		int length = trajectory.length();
+		ByteBuffer buffer = ByteBuffer.allocate(dataOffset + 2 * CHANNELS_PER_SIDE * length * Double.BYTES)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(dataOffset);
+		buffer.putInt(length);
+		buffer.putDouble(trajectory.left.duration);
+		buffer.putInt(metadata.size());
+		for (Map.Entry<String, String> entry : metadata.entrySet()) {
+			writeString(buffer, entry.getKey());
+			writeString(buffer, entry.getValue());
+		}
+		buffer.position(dataOffset);
+		for (ColumnarTrajectory.Side side : new ColumnarTrajectory.Side[] { trajectory.left, trajectory.right }) {
+			for (double[] channel : new double[][] { side.x, side.y, side.position, side.velocity,
+					side.acceleration }) {
+				buffer.asDoubleBuffer().put(channel, 0, length);
+				buffer.position(buffer.position() + length * Double.BYTES);
+			}
+		}
+		buffer.flip();
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(ByteBuffer buffer, String s) {
+		byte[] bytes = utf8(s);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < Integer.BYTES)
+			throw new IOException("trajectory file header is truncated");
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new IOException("trajectory file header is corrupt");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return number of points per side
+	 */
+	public int length() {
+		return length;
+	}
+
+	public double pointDurationSec() {
+		return pointDurationSec;
+	}
+
+	/**
+	 * @return the metadata stored with the trajectory, read-only
+	 */
+	public Map<String, String> metadata() {
+		return metadata;
+	}
+
+	/**
+	 * Copies every point onto the heap. Only needed by code that wants arrays or
+	 * TrajectoryPoints; reading through {@link #left} and {@link #right} doesn't
+	 * copy anything.
+	 */
+	public ColumnarTrajectory toColumnarTrajectory() {
+		return new ColumnarTrajectory(left.toSide(), right.toSide());
+	}
+
+	/**
+	 * One side of the drivetrain, read straight out of the mapped file
+	 */
+	public final class Side {
+		private final DoubleBuffer x;
+		private final DoubleBuffer y;
+		private final DoubleBuffer position;
+		private final DoubleBuffer velocity;
+		private final DoubleBuffer acceleration;
+
+		private Side(DoubleBuffer[] channels, int first) {
+			x = channels[first];
+			y = channels[first + 1];
+			position = channels[first + 2];
+			velocity = channels[first + 3];
+			acceleration = channels[first + 4];
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public double x(int i) {
+			return x.get(i);
+		}
+
+		public double y(int i) {
+			return y.get(i);
+		}
+
+		public double position(int i) {
+			return position.get(i);
+		}
+
+		public double velocity(int i) {
+			return velocity.get(i);
+		}
+
+		public double acceleration(int i) {
+			return acceleration.get(i);
+		}
+
+		/**
+		 * @return a new TrajectoryPoint with the values at index i
+		 */
+		public TrajectoryPoint get(int i) {
+			return new TrajectoryPoint(x(i), y(i), position(i), velocity(i), acceleration(i), pointDurationSec);
+		}
+
+		ColumnarTrajectory.Side toSide() {
+			ColumnarTrajectory.Side side = new ColumnarTrajectory.Side(length, pointDurationSec);
+			// absolute bulk gets aren't in Java 8, so read through duplicates
+			x.duplicate().get(side.x);
+			y.duplicate().get(side.y);
+			position.duplicate().get(side.position);
+			velocity.duplicate().get(side.velocity);
+			acceleration.duplicate().get(side.acceleration);
+			return side;
+		}
+	}
+
+}